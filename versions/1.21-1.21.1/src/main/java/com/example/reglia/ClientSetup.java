@@ -1,18 +1,36 @@
 package com.example.reglia;
 
+import com.example.reglia.client.GifDiskCache;
 import com.example.reglia.client.GifSelectorScreen;
+import com.example.reglia.client.GifTagScanner;
 import com.mojang.blaze3d.platform.InputConstants;
 import net.minecraft.client.KeyMapping;
 import net.minecraft.client.Minecraft;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.MutableComponent;
+import net.minecraft.network.chat.Style;
 import net.neoforged.api.distmarker.Dist;
 import net.neoforged.bus.api.SubscribeEvent;
 import net.neoforged.fml.common.EventBusSubscriber;
+import net.neoforged.neoforge.client.event.ClientChatReceivedEvent;
+import net.neoforged.neoforge.client.event.ClientPlayerNetworkEvent;
 import net.neoforged.neoforge.client.event.ClientTickEvent;
 import net.neoforged.neoforge.client.event.RegisterKeyMappingsEvent;
+import net.neoforged.neoforge.event.GameShuttingDownEvent;
 import org.lwjgl.glfw.GLFW;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 @EventBusSubscriber(modid = Reglia.MOD_ID, value = Dist.CLIENT, bus = EventBusSubscriber.Bus.GAME)
 public class ClientSetup {
+    // [GIF:url:W<width>:H<height>] (Smart Embedding) or the legacy [GIF:url] / [GIF:url:H<height>]
+    private static final Pattern GIF_TAG = Pattern.compile("\\[GIF:(.*?)(?::W(\\d+))?(?::H(\\d+))?\\]");
+    private static final Pattern ID_REF = Pattern.compile("ID:([1-9]\\d{0,8})");
+    private static final Optional<Boolean> HAS_TAG = Optional.of(Boolean.TRUE);
 
     public static final KeyMapping OPEN_GIF_MENU = new KeyMapping(
             "key.reglia.open_gif_menu",
@@ -28,21 +46,54 @@ public class ClientSetup {
     }
 
     @SubscribeEvent
-    public static void onClientChatReceived(net.neoforged.neoforge.client.event.ClientChatReceivedEvent event) {
-        String msg = event.getMessage().getString();
+    public static void onLoggingOut(ClientPlayerNetworkEvent.LoggingOut event) {
+        // Server IDs mean nothing on the next server
+        GifRegistry.clearServer();
+        RegliaNetwork.clearRequests();
+        GifTagScanner.get().clear();
+    }
+
+    @SubscribeEvent
+    public static void onGameShuttingDown(GameShuttingDownEvent event) {
+        // The cache index is saved a few seconds after changes, don't lose the last ones
+        GifDiskCache.flush();
+    }
+
+    @SubscribeEvent
+    public static void onClientChatReceived(ClientChatReceivedEvent event) {
+        Component message = event.getMessage();
+
+        // Almost no message has a tag: check the text parts without flattening them
+        if (message.visit(text -> text.contains("[GIF:") ? HAS_TAG : Optional.empty()).isEmpty())
+            return;
 
-        // Match both [GIF:url] and [GIF:url:H<height>] formats
-        // Use non-greedy match for URL to handle the optional :H suffix
-        // Match [GIF:url:W<width>:H<height>] (Smart Embedding) or legacy formats
-        java.util.regex.Pattern p = java.util.regex.Pattern.compile("\\[GIF:(.*?)(?::W(\\d+))?(?::H(\\d+))?\\]");
-        java.util.regex.Matcher m = p.matcher(msg);
+        // Flatten to styled parts, so tags can be replaced without losing any styling
+        List<Part> parts = new ArrayList<>();
+        StringBuilder full = new StringBuilder();
+        message.visit((style, text) -> {
+            parts.add(new Part(style, text, full.length()));
+            full.append(text);
+            return Optional.empty();
+        }, Style.EMPTY);
 
-        if (m.find()) {
+        MutableComponent rewritten = Component.empty();
+        Matcher m = GIF_TAG.matcher(full);
+        int pos = 0;
+        while (m.find()) {
             String url = m.group(1);
             String widthStr = m.group(2);
             String heightStr = m.group(3);
 
-            int id = GifRegistry.register(url);
+            // Server IDs stay as they are, everyone on the server shares them. Any
+            // other ID (negative ones are local to each client) is unknown: drop it.
+            Matcher idRef = ID_REF.matcher(url);
+            boolean serverId = idRef.matches();
+            if (!serverId && url.startsWith("ID:")) {
+                appendRange(rewritten, parts, pos, m.start());
+                pos = m.end();
+                continue;
+            }
+            int id = serverId ? Integer.parseInt(idRef.group(1)) : GifRegistry.registerLocal(url);
 
             // Default fallback
             int height = 40;
@@ -62,17 +113,53 @@ public class ClientSetup {
                 }
             }
 
-            // Calculate precise lines needed (height / 9px per line)
-            // +1 line padding is usually sufficient if height is exact
-            int lines = (int) Math.ceil(height / 9.0) + 1;
-            String spacing = "\n".repeat(lines);
+            // Sizes come from other players, keep them within what chat displays
+            GifProbe.Size size = new GifProbe.Size(Math.max(1, width), Math.max(1, height)).fitChat();
+            width = size.width();
+            height = size.height();
+
+            // Reconstruct tag with ID and dimensions for the renderer to use
+            // Format: [GIF:ID:<id>:W<w>:H<h>], alone on its line. The chat reserves
+            // the space below it when laying the line out.
+            StringBuilder replacement = new StringBuilder();
+            if (m.start() > 0 && full.charAt(m.start() - 1) != '\n')
+                replacement.append('\n');
+            replacement.append("[GIF:ID:").append(id).append(":W").append(width).append(":H").append(height)
+                    .append(']');
+            if (m.end() < full.length() && full.charAt(m.end()) != '\n')
+                replacement.append('\n');
+
+            appendRange(rewritten, parts, pos, m.start());
+            rewritten.append(Component.literal(replacement.toString()).setStyle(styleAt(parts, m.start())));
+            pos = m.end();
+        }
+        if (pos == 0)
+            return; // "[GIF:" without a complete tag
+
+        appendRange(rewritten, parts, pos, full.length());
+        event.setMessage(rewritten);
+    }
+
+    private record Part(Style style, String text, int start) {
+    }
+
+    /** Appends the original text between two offsets, keeping each part's style. */
+    private static void appendRange(MutableComponent target, List<Part> parts, int from, int to) {
+        for (Part part : parts) {
+            int start = Math.max(from, part.start());
+            int end = Math.min(to, part.start() + part.text().length());
+            if (start < end)
+                target.append(Component.literal(part.text().substring(start - part.start(), end - part.start()))
+                        .setStyle(part.style()));
+        }
+    }
 
-            // Reconstruct message with ID and dimensions for the renderer to use
-            // Format: [GIF:ID:<id>:W<w>:H<h>]
-            String newTag = "[GIF:ID:" + id + ":W" + width + ":H" + height + "]";
-            String newText = msg.replace(m.group(0), "\n" + newTag + spacing);
-            event.setMessage(net.minecraft.network.chat.Component.literal(newText));
+    private static Style styleAt(List<Part> parts, int offset) {
+        for (Part part : parts) {
+            if (offset < part.start() + part.text().length())
+                return part.style();
         }
+        return Style.EMPTY;
     }
 
     @EventBusSubscriber(modid = Reglia.MOD_ID, value = Dist.CLIENT, bus = EventBusSubscriber.Bus.MOD)
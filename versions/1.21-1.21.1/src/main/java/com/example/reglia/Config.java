@@ -30,6 +30,7 @@ public class Config {
         public boolean sendDeaths = true;
         public boolean sendJoinLeave = true;
         public boolean firstBootShown = false; // Track if setup message was shown
+        public int gifCacheSizeMb = 500; // Disk cap for downloaded GIFs (client)
     }
 
     // Static accessors for easy use
@@ -40,6 +41,7 @@ public class Config {
     public static boolean sendDeaths = true;
     public static boolean sendJoinLeave = true;
     public static boolean firstBootShown = false;
+    public static int gifCacheSizeMb = 500;
 
     public static void load() {
         try {
@@ -83,6 +85,7 @@ public class Config {
         sendDeaths = data.sendDeaths;
         sendJoinLeave = data.sendJoinLeave;
         firstBootShown = data.firstBootShown;
+        gifCacheSizeMb = data.gifCacheSizeMb > 0 ? data.gifCacheSizeMb : 500;
     }
 
     // Setters
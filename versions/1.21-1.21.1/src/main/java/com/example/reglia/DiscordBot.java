@@ -1,23 +1,39 @@
 package com.example.reglia;
 
+import com.google.common.io.CharSource;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.mojang.logging.LogUtils;
 import net.minecraft.network.chat.Component;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientboundSystemChatPacket;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.entity.player.ChatVisiblity;
 import org.slf4j.Logger;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -29,23 +45,43 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class DiscordBot implements WebSocket.Listener {
     private static final Logger LOGGER = LogUtils.getLogger();
     private static final String GATEWAY_URL = "wss://gateway.discord.gg/?v=10&encoding=json";
+    private static final Set<String> HANDLED_EVENTS = Set.of("READY", "RESUMED", "MESSAGE_CREATE");
+    private static final int EVENT_QUEUE_CAPACITY = 256;
 
     private static DiscordBot instance;
     private static MinecraftServer server;
 
     private final HttpClient client;
-    private WebSocket webSocket;
+    private volatile WebSocket webSocket;
     private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> heartbeat;
 
-    private String sessionId;
-    private Integer lastSequence = null;
-    private boolean isReconnecting = false;
+    // Written by the event loop, read by the heartbeat and reconnect tasks
+    private volatile String sessionId;
+    private volatile Integer lastSequence = null;
+    private volatile boolean isReconnecting = false;
     private final AtomicBoolean isConnected = new AtomicBoolean(false);
-    private final StringBuilder messageBuffer = new StringBuilder();
+    private final StringBuilder messageBuffer = new StringBuilder(); // Listener callbacks never overlap
+
+    // Gateway events in arrival order, handled one at a time by the event loop.
+    // The socket is only asked for more while there is room.
+    private final BlockingQueue<GatewayEvent> events = new ArrayBlockingQueue<>(EVENT_QUEUE_CAPACITY);
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    private final Thread eventLoop;
+
+    // Chat for players, in order, sent once per server tick
+    private final Queue<String> outbox = new ConcurrentLinkedQueue<>();
+    private CompletableFuture<Void> outboxTail = CompletableFuture.completedFuture(null); // Event loop only
+
+    private record GatewayEvent(int op, Integer s, String t, JsonObject d) {
+    }
 
     public DiscordBot() {
         this.client = HttpClient.newHttpClient();
         this.scheduler = Executors.newScheduledThreadPool(2);
+        this.eventLoop = new Thread(this::runEventLoop, "Reglia-Discord-Gateway");
+        this.eventLoop.setDaemon(true);
+        this.eventLoop.start();
     }
 
     public static void start(MinecraftServer mcServer) {
@@ -103,6 +139,7 @@ public class DiscordBot implements WebSocket.Listener {
         if (scheduler != null && !scheduler.isShutdown()) {
             scheduler.shutdownNow();
         }
+        eventLoop.interrupt();
     }
 
     private void scheduleReconnect() {
@@ -119,42 +156,156 @@ public class DiscordBot implements WebSocket.Listener {
         this.webSocket = webSocket;
         this.isConnected.set(true);
         LOGGER.info("[Reglia] WebSocket connected!");
-        webSocket.request(1);
+        paused.set(false);
+        requestMore(webSocket);
     }
 
     @Override
     public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
-        messageBuffer.append(data);
-        if (last) {
-            String msg = messageBuffer.toString();
-            messageBuffer.setLength(0);
+        if (!last) {
+            messageBuffer.append(data);
+            webSocket.request(1);
+            return null;
+        }
+
+        // Single-frame messages (almost all of them) are read in place
+        CharSequence msg = data;
+        if (messageBuffer.length() > 0)
+            msg = messageBuffer.append(data);
+        try {
+            GatewayEvent event = parse(CharSource.wrap(msg).openStream());
+            // Only full if the socket delivered more than requestMore asked for;
+            // wait for the loop rather than lose the event
+            if (event != null && !events.offer(event))
+                events.put(event);
+        } catch (Exception e) {
+            LOGGER.error("[Reglia] Parse error: {}", e.getMessage());
+        }
+        messageBuffer.setLength(0);
+        requestMore(webSocket);
+        return null;
+    }
+
+    /**
+     * Asks for the next message if the event queue has room, otherwise leaves it
+     * to the event loop once it catches up. Discord buffers in the meantime.
+     */
+    private void requestMore(WebSocket socket) {
+        if (events.remainingCapacity() > 0) {
+            socket.request(1);
+            return;
+        }
+        paused.set(true);
+        // The loop may have taken an event before seeing the flag
+        if (events.remainingCapacity() > 0 && paused.compareAndSet(true, false))
+            socket.request(1);
+    }
+
+    private void runEventLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            GatewayEvent event;
             try {
-                JsonObject json = JsonParser.parseString(msg).getAsJsonObject();
-                int op = json.get("op").getAsInt();
+                event = events.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                handle(event);
+            } catch (Exception e) {
+                LOGGER.error("[Reglia] Gateway event error: {}", e.getMessage());
+            }
+            WebSocket socket = webSocket;
+            if (socket != null && paused.compareAndSet(true, false))
+                socket.request(1);
+        }
+    }
 
-                if (json.has("s") && !json.get("s").isJsonNull()) {
-                    lastSequence = json.get("s").getAsInt();
+    /**
+     * Reads a gateway payload as a stream. Only the "d" of events we handle is
+     * turned into a tree, everything else (guild creates, presences, typing...)
+     * is skipped token by token.
+     */
+    private static GatewayEvent parse(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        int op = -1;
+        Integer s = null;
+        String t = null;
+        JsonObject d = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "op" -> op = reader.nextInt();
+                case "s" -> {
+                    if (reader.peek() == JsonToken.NULL)
+                        reader.nextNull();
+                    else
+                        s = reader.nextInt();
                 }
-
-                switch (op) {
-                    case 10 -> handleHello(json);
-                    case 0 -> handleDispatch(json);
-                    case 7 -> {
-                        LOGGER.info("[Reglia] Reconnect requested");
-                        webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "Reconnect");
-                    }
-                    case 9 -> {
-                        LOGGER.warn("[Reglia] Invalid session");
-                        sessionId = null;
-                        lastSequence = null;
-                        sendIdentify();
-                    }
+                case "t" -> {
+                    if (reader.peek() == JsonToken.NULL)
+                        reader.nextNull();
+                    else
+                        t = reader.nextString();
                 }
-            } catch (Exception e) {
-                LOGGER.error("[Reglia] Parse error: {}", e.getMessage());
+                case "d" -> {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT && wantsPayload(op, t))
+                        d = JsonParser.parseReader(reader).getAsJsonObject();
+                    else
+                        reader.skipValue();
+                }
+                default -> reader.skipValue();
             }
         }
-        webSocket.request(1);
+        return op == -1 ? null : new GatewayEvent(op, s, t, d);
+    }
+
+    /** Event loop thread only. */
+    private void handle(GatewayEvent event) {
+        if (event.s() != null)
+            lastSequence = event.s();
+
+        JsonObject d = event.d();
+        switch (event.op()) {
+            case 10 -> handleHello(d);
+            case 0 -> handleDispatch(event.t(), d);
+            case 7 -> {
+                LOGGER.info("[Reglia] Reconnect requested");
+                webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "Reconnect");
+            }
+            case 9 -> {
+                LOGGER.warn("[Reglia] Invalid session");
+                sessionId = null;
+                lastSequence = null;
+                sendIdentify();
+            }
+        }
+    }
+
+    /** Discord sends "op" and "t" before "d"; if it ever doesn't, keep the payload. */
+    private static boolean wantsPayload(int op, String t) {
+        if (op == -1 || op == 10)
+            return true;
+        return op == 0 && (t == null || HANDLED_EVENTS.contains(t));
+    }
+
+    // Control frames and binary messages use up a request too. The defaults ask
+    // for more unconditionally, which would get around the queue limit.
+    @Override
+    public CompletionStage<?> onPing(WebSocket webSocket, ByteBuffer message) {
+        requestMore(webSocket);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onPong(WebSocket webSocket, ByteBuffer message) {
+        requestMore(webSocket);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        requestMore(webSocket);
         return null;
     }
 
@@ -173,9 +324,11 @@ public class DiscordBot implements WebSocket.Listener {
         return null;
     }
 
-    private void handleHello(JsonObject json) {
-        int interval = json.getAsJsonObject("d").get("heartbeat_interval").getAsInt();
-        scheduler.scheduleAtFixedRate(() -> {
+    private void handleHello(JsonObject d) {
+        int interval = d.get("heartbeat_interval").getAsInt();
+        if (heartbeat != null)
+            heartbeat.cancel(false); // From the previous connection
+        heartbeat = scheduler.scheduleAtFixedRate(() -> {
             if (this.webSocket != null) {
                 try {
                     JsonObject hb = new JsonObject();
@@ -222,9 +375,9 @@ public class DiscordBot implements WebSocket.Listener {
             webSocket.sendText(resume.toString(), true);
     }
 
-    private void handleDispatch(JsonObject json) {
-        String t = json.has("t") && !json.get("t").isJsonNull() ? json.get("t").getAsString() : "";
-        JsonObject d = json.getAsJsonObject("d");
+    private void handleDispatch(String t, JsonObject d) {
+        if (t == null || d == null)
+            return;
 
         switch (t) {
             case "READY" -> {
@@ -232,9 +385,7 @@ public class DiscordBot implements WebSocket.Listener {
                 String name = d.getAsJsonObject("user").get("username").getAsString();
                 LOGGER.info("[Reglia] Connected as: {}", name);
                 isReconnecting = false;
-                if (server != null) {
-                    server.execute(() -> broadcast("§a[Reglia] Discord bot connected as: " + name));
-                }
+                queueBroadcast("§a[Reglia] Discord bot connected as: " + name);
             }
             case "RESUMED" -> {
                 LOGGER.info("[Reglia] Session resumed");
@@ -260,26 +411,43 @@ public class DiscordBot implements WebSocket.Listener {
         if (content.isEmpty() && gifUrls.isEmpty())
             return;
 
-        final String finalContent = content;
-        final List<String> finalGifs = gifUrls;
+        // Sizes come from Discord's metadata or a header probe, so clients lay the
+        // GIFs out before downloading them
+        List<CompletableFuture<GifProbe.Size>> sizes = new ArrayList<>();
+        for (String gif : gifUrls)
+            sizes.add(GifProbe.probe(gif));
+
+        // Chained after the previous message, so a slow probe can't reorder chat
+        CompletableFuture<Void> probed = CompletableFuture.allOf(sizes.toArray(new CompletableFuture<?>[0]));
+        outboxTail = CompletableFuture.allOf(outboxTail, probed)
+                .thenRun(() -> queueBroadcast(formatMessage(username, content, gifUrls, sizes)))
+                .exceptionally(e -> {
+                    LOGGER.error("[Reglia] Failed to relay message: {}", e.getMessage());
+                    return null;
+                });
+    }
 
-        if (server != null) {
-            server.execute(() -> {
-                String msgText = finalContent;
-                for (String gif : finalGifs) {
-                    msgText = msgText.replace(gif, "").trim();
-                }
+    private static String formatMessage(String username, String content, List<String> gifUrls,
+            List<CompletableFuture<GifProbe.Size>> sizes) {
+        String msgText = content;
+        for (String gif : gifUrls) {
+            msgText = msgText.replace(gif, "").trim();
+        }
 
-                String msg = "§9[Discord] §f" + username + "§7: §f" + msgText;
-                for (String gif : finalGifs) {
-                    // Register URL to get a short ID, preventing chat wrap issues
-                    // 9 newlines reserves 81px for max 80px GIF height
-                    int id = GifRegistry.register(gif);
-                    msg += "\n[GIF:ID:" + id + "]\n\n\n\n\n\n\n\n\n";
-                }
-                broadcast(msg);
-            });
+        StringBuilder msg = new StringBuilder("§9[Discord] §f" + username + "§7: §f" + msgText);
+        for (int i = 0; i < gifUrls.size(); i++) {
+            // Register URL to get a short ID, preventing chat wrap issues.
+            // Clients put the tag on its own line and reserve its height.
+            int id = GifRegistry.register(gifUrls.get(i));
+            msg.append("\n[GIF:ID:").append(id);
+            GifProbe.Size size = sizes.get(i).join();
+            if (size.isKnown()) {
+                size = size.fitChat();
+                msg.append(":W").append(size.width()).append(":H").append(size.height());
+            }
+            msg.append(']');
         }
+        return msg.toString();
     }
 
     private List<String> findAllGifs(JsonObject d, String content) {
@@ -295,6 +463,7 @@ public class DiscordBot implements WebSocket.Listener {
                     if (type.equals("image/gif") || url.toLowerCase().endsWith(".gif")) {
                         if (!gifs.contains(url))
                             gifs.add(url);
+                        rememberSize(url, obj);
                     }
                 }
             }
@@ -312,10 +481,15 @@ public class DiscordBot implements WebSocket.Listener {
                     }
                 }
                 if (embed.has("thumbnail")) {
-                    String thumb = embed.getAsJsonObject("thumbnail").get("url").getAsString();
+                    JsonObject thumbnail = embed.getAsJsonObject("thumbnail");
+                    String thumb = thumbnail.get("url").getAsString();
                     if (thumb.toLowerCase().endsWith(".gif") && !gifs.contains(thumb)) {
                         gifs.add(thumb);
                     }
+                    // Tenor/Giphy page embeds: the preview has the GIF's aspect ratio
+                    rememberSize(thumb, thumbnail);
+                    if (embed.has("url"))
+                        rememberSize(embed.get("url").getAsString(), thumbnail);
                 }
             }
         }
@@ -336,12 +510,41 @@ public class DiscordBot implements WebSocket.Listener {
         return gifs;
     }
 
-    private void broadcast(String text) {
-        if (server == null)
+    private static void rememberSize(String url, JsonObject media) {
+        if (media.has("width") && media.has("height")
+                && !media.get("width").isJsonNull() && !media.get("height").isJsonNull())
+            GifProbe.remember(url, media.get("width").getAsInt(), media.get("height").getAsInt());
+    }
+
+    /** Queues a message for players, sent on the next server tick. */
+    private void queueBroadcast(String text) {
+        outbox.add(text);
+    }
+
+    /**
+     * Server thread, once per tick: sends every Discord message that arrived
+     * since the last tick in one pass over the players.
+     */
+    public static void flushBroadcasts() {
+        if (instance != null)
+            instance.drainOutbox();
+    }
+
+    private void drainOutbox() {
+        if (outbox.isEmpty() || server == null)
             return;
-        Component msg = Component.literal(text);
+
+        // One packet per message, shared by every player
+        List<Packet<?>> packets = new ArrayList<>();
+        String text;
+        while ((text = outbox.poll()) != null)
+            packets.add(new ClientboundSystemChatPacket(Component.literal(text), false));
+
         for (ServerPlayer p : server.getPlayerList().getPlayers()) {
-            p.sendSystemMessage(msg);
+            if (p.getChatVisibility() == ChatVisiblity.HIDDEN)
+                continue; // Same rule sendSystemMessage applies
+            for (Packet<?> packet : packets)
+                p.connection.send(packet);
         }
     }
 }
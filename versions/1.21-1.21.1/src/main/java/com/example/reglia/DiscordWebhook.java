@@ -1,21 +1,68 @@
 package com.example.reglia;
 
-import com.google.gson.JsonObject;
 import com.mojang.logging.LogUtils;
 import org.slf4j.Logger;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.CompletableFuture;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Handles sending messages from Minecraft to Discord via webhooks.
  * Uses standard Java networking (no external libs).
+ * Messages are sent one request at a time, in order, following Discord's rate
+ * limit headers. While a request is in flight or rate limited, consecutive
+ * messages from the same sender pile up and go out together as one message.
  */
 public class DiscordWebhook {
     private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final int MAX_CONTENT_LENGTH = 2000; // Discord's limit per message
+    private static final int MAX_QUEUED = 10_000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MS = 1000;
+
+    // Every tag variant: [GIF:url], [GIF:url:H<h>], [GIF:url:W<w>:H<h>] and [GIF:ID:<n>...]
+    private static final Pattern GIF_TAG = Pattern.compile("\\[GIF:(.*?)(?::W\\d+)?(?::H\\d+)?\\]");
+    private static final Pattern ID_REF = Pattern.compile("ID:([1-9]\\d{0,8})");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Callbacks and back-off timers only, the requests themselves don't block a thread
+    private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "Reglia-Webhook");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // One client for every message: the connection to Discord (HTTP/2 when
+    // offered) stays open between chat lines instead of a TLS handshake each
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(TIMEOUT)
+            .executor(EXECUTOR)
+            .build();
+
+    /** A message waiting to be sent. */
+    private record Outgoing(String content, String username, String avatarUrl) {
+        boolean sameSender(Outgoing other) {
+            return username.equals(other.username) && Objects.equals(avatarUrl, other.avatarUrl);
+        }
+    }
+
+    // Messages not sent yet, in chat order
+    private static final Deque<Outgoing> QUEUE = new ArrayDeque<>();
+    private static boolean sending = false; // Guarded by QUEUE
 
     /**
      * Send a message to Discord via webhook.
@@ -26,14 +73,7 @@ public class DiscordWebhook {
             return false;
         }
 
-        CompletableFuture.runAsync(() -> {
-            try {
-                sendPost(Config.webhookUrl, message, username, null);
-            } catch (Exception e) {
-                LOGGER.error("[Reglia] Webhook error: {}", e.getMessage());
-            }
-        });
-
+        enqueue(new Outgoing(message, username, null));
         return true;
     }
 
@@ -47,54 +87,200 @@ public class DiscordWebhook {
 
         String avatarUrl = "https://crafatar.com/avatars/" + playerName + "?overlay=true";
 
-        CompletableFuture.runAsync(() -> {
-            try {
-                String content = message;
-                // Strip [GIF:url] or [GIF:url:H<height>] tag for clean Discord links
-                java.util.regex.Pattern p = java.util.regex.Pattern.compile("\\[GIF:(https?://[^\\]]+?)(?::H\\d+)?\\]");
-                java.util.regex.Matcher m = p.matcher(content);
-                if (m.find()) {
-                    content = m.group(1); // Just the URL
-                }
+        String content = stripGifTags(message);
+        if (content.isEmpty())
+            return false; // Only an unknown GIF ID, Discord rejects empty messages
 
-                sendPost(Config.webhookUrl, content, playerName, avatarUrl);
-            } catch (Exception e) {
-                LOGGER.error("[Reglia] Webhook error: {}", e.getMessage());
+        enqueue(new Outgoing(content, playerName, avatarUrl));
+        return true;
+    }
+
+    /**
+     * Replaces each GIF tag with its plain URL, so Discord embeds it. Lines
+     * without tags are returned as they are.
+     */
+    static String stripGifTags(String message) {
+        if (!message.contains("[GIF:"))
+            return message;
+        Matcher m = GIF_TAG.matcher(message);
+        if (!m.find())
+            return message;
+
+        StringBuilder out = new StringBuilder(message.length());
+        int pos = 0;
+        do {
+            out.append(message, pos, m.start());
+            String url = tagUrl(m.group(1));
+            if (url != null)
+                out.append(url);
+            pos = m.end();
+        } while (m.find());
+        out.append(message, pos, message.length());
+        return out.toString().trim();
+    }
+
+    /** URL a tag points at, with server registry IDs resolved. */
+    private static String tagUrl(String target) {
+        Matcher id = ID_REF.matcher(target);
+        if (id.matches())
+            return GifRegistry.getUrl(Integer.parseInt(id.group(1)));
+        return target.startsWith("http://") || target.startsWith("https://") ? target : null;
+    }
+
+    /** Webhook payload, written straight into one buffer. */
+    private static String toJson(Outgoing message) {
+        StringBuilder json = new StringBuilder(message.content().length() + 64);
+        json.append("{\"content\":");
+        appendJsonString(json, message.content());
+        json.append(",\"username\":");
+        appendJsonString(json, message.username());
+        if (message.avatarUrl() != null) {
+            json.append(",\"avatar_url\":");
+            appendJsonString(json, message.avatarUrl());
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        json.append(c);
+                    }
+                }
             }
-        });
+        }
+        json.append('"');
+    }
 
-        return true;
+    private static void enqueue(Outgoing message) {
+        synchronized (QUEUE) {
+            if (QUEUE.size() >= MAX_QUEUED) {
+                LOGGER.warn("[Reglia] Webhook queue full, dropping oldest message");
+                QUEUE.poll();
+            }
+            QUEUE.add(message);
+        }
+        pump();
     }
 
-    private static void sendPost(String webhookUrl, String content, String username, String avatarUrl)
-            throws Exception {
-        URL url = new URL(webhookUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("User-Agent", "Reglia/3.0");
-        conn.setDoOutput(true);
-        conn.setConnectTimeout(5000);
-        conn.setReadTimeout(5000);
-
-        JsonObject json = new JsonObject();
-        json.addProperty("content", content);
-        json.addProperty("username", username);
-        if (avatarUrl != null) {
-            json.addProperty("avatar_url", avatarUrl);
+    /** Starts the next request unless one is in flight or waiting out a rate limit. */
+    private static void pump() {
+        Outgoing batch;
+        synchronized (QUEUE) {
+            if (sending || QUEUE.isEmpty())
+                return;
+            batch = takeBatch();
+            sending = true;
         }
+        send(batch, 1);
+    }
 
-        try (OutputStream os = conn.getOutputStream()) {
-            byte[] input = json.toString().getBytes(StandardCharsets.UTF_8);
-            os.write(input);
+    /** Head of the queue, merged with the messages behind it from the same sender. */
+    private static Outgoing takeBatch() {
+        Outgoing first = QUEUE.poll();
+        Outgoing next = QUEUE.peek();
+        if (next == null || !first.sameSender(next))
+            return first;
+
+        StringBuilder content = new StringBuilder(first.content());
+        while (next != null && first.sameSender(next)
+                && content.length() + 1 + next.content().length() <= MAX_CONTENT_LENGTH) {
+            content.append('\n').append(QUEUE.poll().content());
+            next = QUEUE.peek();
         }
+        return new Outgoing(content.toString(), first.username(), first.avatarUrl());
+    }
 
-        int code = conn.getResponseCode();
-        if (code != 200 && code != 204) {
-            LOGGER.warn("[Reglia] Webhook returned code: {}", code);
+    /** Sends without blocking the caller, then moves on to the next message. */
+    private static void send(Outgoing batch, int attempt) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder()
+                    .uri(URI.create(Config.webhookUrl))
+                    .header("Content-Type", "application/json")
+                    .header("User-Agent", "Reglia/3.0")
+                    .timeout(TIMEOUT)
+                    .POST(HttpRequest.BodyPublishers.ofString(toJson(batch)))
+                    .build();
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // Webhook URL changed to something invalid since the message was queued
+            LOGGER.error("[Reglia] Webhook error: {}", e.getMessage());
+            release(0);
+            return;
         }
 
-        conn.disconnect();
+        HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            if (error != null || response.statusCode() >= 500) {
+                if (attempt < MAX_ATTEMPTS) {
+                    long delay = RETRY_BASE_MS << (attempt - 1);
+                    EXECUTOR.schedule(() -> send(batch, attempt + 1), delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                LOGGER.error("[Reglia] Webhook failed {} times, dropping message: {}", attempt,
+                        error != null ? error.getMessage() : "code " + response.statusCode());
+                release(0);
+                return;
+            }
+
+            int code = response.statusCode();
+            if (code == 429) {
+                // Not a failure: put it back, it goes out with whatever queued meanwhile
+                synchronized (QUEUE) {
+                    QUEUE.addFirst(batch);
+                }
+                release(retryAfterMs(response));
+                return;
+            }
+            if (code != 200 && code != 204) {
+                LOGGER.warn("[Reglia] Webhook returned code: {}", code);
+            }
+
+            // Out of requests for this window: wait for the reset instead of hitting a 429
+            boolean exhausted = response.headers().firstValue("X-RateLimit-Remaining")
+                    .map("0"::equals).orElse(false);
+            release(exhausted ? secondsHeaderMs(response, "X-RateLimit-Reset-After").orElse(0L) : 0);
+        });
+    }
+
+    /** Lets the next request go after {@code delayMs}. */
+    private static void release(long delayMs) {
+        Runnable next = () -> {
+            synchronized (QUEUE) {
+                sending = false;
+            }
+            pump();
+        };
+        if (delayMs > 0)
+            EXECUTOR.schedule(next, delayMs, TimeUnit.MILLISECONDS);
+        else
+            next.run();
+    }
+
+    private static long retryAfterMs(HttpResponse<?> response) {
+        return secondsHeaderMs(response, "Retry-After")
+                .or(() -> secondsHeaderMs(response, "X-RateLimit-Reset-After"))
+                .orElse(RETRY_BASE_MS);
+    }
+
+    /** A header holding (fractional) seconds, in milliseconds. */
+    private static Optional<Long> secondsHeaderMs(HttpResponse<?> response, String name) {
+        return response.headers().firstValue(name).flatMap(value -> {
+            try {
+                return Optional.of((long) Math.ceil(Double.parseDouble(value) * 1000));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        });
     }
 }
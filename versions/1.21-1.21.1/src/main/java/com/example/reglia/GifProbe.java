@@ -0,0 +1,214 @@
+package com.example.reglia;
+
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the size of a GIF from its header on the server, so chat tags can carry
+ * :W/:H and clients reserve the right space before downloading anything. Only
+ * the first bytes (signature and logical screen descriptor) are requested, the
+ * whole probe is bounded by a timeout, and results are cached. Only the Discord
+ * CDN, Tenor and Giphy are probed: the URLs come from any Discord user, and the
+ * server must not be made to fetch from private hosts.
+ */
+public class GifProbe {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    /** Same limits the GIF picker uses for the size it sends. */
+    public static final int MAX_DISPLAY_HEIGHT = 40;
+    public static final int MAX_DISPLAY_WIDTH = 200;
+
+    private static final int HEADER_BYTES = 10; // "GIF89a" + width + height
+    private static final int MAX_ENTRIES = 1024;
+    private static final Duration TIMEOUT = Duration.ofSeconds(3);
+    private static final Set<String> ALLOWED_HOSTS = Set.of("cdn.discordapp.com", "media.discordapp.net",
+            "tenor.com", "giphy.com");
+
+    // Redirects could point anywhere, so they aren't followed
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+
+    /** Pixel size of a GIF. */
+    public record Size(int width, int height) {
+        private static final Size UNKNOWN = new Size(0, 0);
+
+        public boolean isKnown() {
+            return width > 0 && height > 0;
+        }
+
+        /** Scaled down to fit a chat line, keeping the aspect ratio. */
+        public Size fitChat() {
+            int w = width;
+            int h = height;
+            if (h > MAX_DISPLAY_HEIGHT) {
+                w = (int) Math.max(1, (long) w * MAX_DISPLAY_HEIGHT / h);
+                h = MAX_DISPLAY_HEIGHT;
+            }
+            if (w > MAX_DISPLAY_WIDTH) {
+                h = (int) Math.max(1, (long) h * MAX_DISPLAY_WIDTH / w);
+                w = MAX_DISPLAY_WIDTH;
+            }
+            return new Size(w, h);
+        }
+    }
+
+    // Also remembers failures (UNKNOWN), so a page URL isn't fetched for every message
+    private static final Map<String, Size> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Size> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /** Records a size reported elsewhere (e.g. Discord attachment metadata). */
+    public static void remember(String url, int width, int height) {
+        if (url == null || width <= 0 || height <= 0)
+            return;
+        synchronized (CACHE) {
+            CACHE.put(url, new Size(width, height));
+        }
+    }
+
+    /**
+     * Size of the GIF at {@code url}. Never fails: completes with a size that
+     * isn't {@link Size#isKnown() known} if the URL isn't a reachable GIF.
+     */
+    public static CompletableFuture<Size> probe(String url) {
+        synchronized (CACHE) {
+            Size cached = CACHE.get(url);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+        }
+
+        HttpRequest request;
+        try {
+            URI uri = URI.create(url);
+            if (!isAllowed(uri))
+                return CompletableFuture.completedFuture(Size.UNKNOWN);
+            request = HttpRequest.newBuilder()
+                    .uri(uri)
+                    .header("User-Agent", "Reglia-Mod")
+                    .header("Range", "bytes=0-" + (HEADER_BYTES - 1))
+                    .timeout(TIMEOUT)
+                    .GET()
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(Size.UNKNOWN);
+        }
+
+        HeaderReader header = new HeaderReader();
+        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofPublisher())
+                .thenCompose(response -> {
+                    response.body().subscribe(header);
+                    if (response.statusCode() != 200 && response.statusCode() != 206) {
+                        header.cancel();
+                        return CompletableFuture.completedFuture(Size.UNKNOWN);
+                    }
+                    return header.result.thenApply(GifProbe::parseHeader);
+                })
+                .exceptionally(e -> {
+                    LOGGER.debug("[Reglia] GIF probe failed for " + url + ": " + e.getMessage());
+                    return Size.UNKNOWN;
+                })
+                // The request timeout only covers the headers, this covers a stalled body too
+                .completeOnTimeout(Size.UNKNOWN, TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+                .thenApply(size -> {
+                    header.cancel();
+                    synchronized (CACHE) {
+                        CACHE.put(url, size);
+                    }
+                    return size;
+                });
+    }
+
+    private static boolean isAllowed(URI uri) {
+        if (!"https".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null)
+            return false;
+        String host = uri.getHost().toLowerCase(Locale.ROOT);
+        for (String allowed : ALLOWED_HOSTS) {
+            if (host.equals(allowed) || host.endsWith("." + allowed))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collects the first {@link #HEADER_BYTES} of a body without blocking a
+     * thread, then cancels the rest. Servers that ignore Range answer 200 with
+     * the whole file.
+     */
+    private static final class HeaderReader implements Flow.Subscriber<List<ByteBuffer>> {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final byte[] bytes = new byte[HEADER_BYTES];
+        private int length;
+        private Flow.Subscription subscription;
+        private boolean cancelled;
+
+        @Override
+        public synchronized void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (cancelled)
+                subscription.cancel();
+            else
+                subscription.request(1);
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                int n = Math.min(buffer.remaining(), HEADER_BYTES - length);
+                buffer.get(bytes, length, n);
+                length += n;
+            }
+            if (length == HEADER_BYTES) {
+                result.complete(bytes);
+                cancel();
+            } else if (!cancelled) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            result.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(new byte[0]); // Shorter than a GIF header
+        }
+
+        synchronized void cancel() {
+            if (cancelled)
+                return;
+            cancelled = true;
+            if (subscription != null)
+                subscription.cancel();
+        }
+    }
+
+    private static Size parseHeader(byte[] header) {
+        if (header.length < HEADER_BYTES || header[0] != 'G' || header[1] != 'I' || header[2] != 'F')
+            return Size.UNKNOWN;
+        int width = (header[6] & 0xFF) | (header[7] & 0xFF) << 8;
+        int height = (header[8] & 0xFF) | (header[9] & 0xFF) << 8;
+        return new Size(width, height);
+    }
+}
@@ -1,26 +1,105 @@
 package com.example.reglia;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Common registry for mapping GIF URLs to short IDs.
  * This avoids sending long URLs in chat which cause wrapping issues and
  * breaking detecting.
+ * IDs are handed out in order and never reused, and only the most recently
+ * used mappings are kept. Positive IDs are assigned by the server (DiscordBot)
+ * and mean the same thing for every player on it, clients look up the ones
+ * they don't know through {@link RegliaNetwork}. Negative IDs are local to a
+ * client, for tags it rewrote itself.
  * Safe to access from both Server (DiscordBot) and Client (GifManager) threads.
  */
 public class GifRegistry {
-    private static final Map<Integer, String> ID_TO_URL = new ConcurrentHashMap<>();
+    private static final int MAX_ENTRIES = 4096;
 
+    private static final Table SERVER = new Table(1);
+    private static final Table LOCAL = new Table(-1);
+
+    /** Server: ID valid for everyone connected, reused if the URL is already known. */
     public static int register(String url) {
         if (url == null)
-            return -1;
-        int id = Math.abs(url.hashCode());
-        ID_TO_URL.put(id, url);
-        return id;
+            return 0;
+        return SERVER.register(url);
+    }
+
+    /** Client: ID only this client understands. */
+    public static int registerLocal(String url) {
+        if (url == null)
+            return 0;
+        return LOCAL.register(url);
     }
 
     public static String getUrl(int id) {
-        return ID_TO_URL.get(id);
+        if (id > 0)
+            return SERVER.get(id);
+        if (id < 0)
+            return LOCAL.get(id);
+        return null;
+    }
+
+    /** Client: remember a server ID learned over the network. */
+    public static void put(int id, String url) {
+        if (id > 0 && url != null)
+            SERVER.put(id, url);
+    }
+
+    /** Client: forget server IDs when leaving, the next server numbers its own. */
+    public static void clearServer() {
+        SERVER.clear();
+    }
+
+    private static final class Table {
+        private final int step;
+        private int next;
+        private final Map<String, Integer> urlToId = new HashMap<>();
+        private final LinkedHashMap<Integer, String> idToUrl = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                if (size() <= MAX_ENTRIES)
+                    return false;
+                urlToId.remove(eldest.getValue(), eldest.getKey());
+                return true;
+            }
+        };
+
+        Table(int step) {
+            this.step = step;
+            this.next = step;
+        }
+
+        synchronized int register(String url) {
+            Integer existing = urlToId.get(url);
+            if (existing != null) {
+                idToUrl.get(existing); // Mark as recently used
+                return existing;
+            }
+            int id = next;
+            next += step;
+            idToUrl.put(id, url);
+            urlToId.put(url, id);
+            return id;
+        }
+
+        synchronized String get(int id) {
+            return idToUrl.get(id);
+        }
+
+        synchronized void put(int id, String url) {
+            String previous = idToUrl.put(id, url);
+            if (previous != null)
+                urlToId.remove(previous, id);
+            urlToId.put(url, id);
+        }
+
+        synchronized void clear() {
+            idToUrl.clear();
+            urlToId.clear();
+        }
     }
 }
@@ -15,6 +15,7 @@ import net.neoforged.neoforge.event.ServerChatEvent;
 import net.neoforged.neoforge.event.entity.player.PlayerEvent;
 import net.neoforged.neoforge.event.server.ServerStartingEvent;
 import net.neoforged.neoforge.event.server.ServerStoppingEvent;
+import net.neoforged.neoforge.event.tick.ServerTickEvent;
 import org.slf4j.Logger;
 
 /**
@@ -29,6 +30,7 @@ public class Reglia {
         // Lifecycle events
         modEventBus.addListener(this::onCommonSetup);
         modEventBus.addListener(this::onClientSetup);
+        modEventBus.addListener(RegliaNetwork::register);
 
         // Server events
         NeoForge.EVENT_BUS.addListener(this::onServerStarting);
@@ -36,6 +38,7 @@ public class Reglia {
         NeoForge.EVENT_BUS.addListener(this::onRegisterCommands);
         NeoForge.EVENT_BUS.addListener(this::onServerChat);
         NeoForge.EVENT_BUS.addListener(this::onPlayerLogin);
+        NeoForge.EVENT_BUS.addListener(this::onServerTick);
 
         LOGGER.info("[Reglia] Initializing v3.5 for NeoForge 1.21.x");
     }
@@ -59,6 +62,10 @@ public class Reglia {
         DiscordBot.stop();
     }
 
+    private void onServerTick(ServerTickEvent.Post event) {
+        DiscordBot.flushBroadcasts();
+    }
+
     private void onRegisterCommands(RegisterCommandsEvent event) {
         ModCommands.register(event.getDispatcher());
         LOGGER.info("[Reglia] Commands registered");
@@ -0,0 +1,86 @@
+package com.example.reglia;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.codec.ByteBufCodecs;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.resources.ResourceLocation;
+import net.neoforged.neoforge.network.PacketDistributor;
+import net.neoforged.neoforge.network.event.RegisterPayloadHandlersEvent;
+import net.neoforged.neoforge.network.handling.IPayloadContext;
+import net.neoforged.neoforge.network.registration.PayloadRegistrar;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets clients resolve server-assigned GIF IDs ({@code [GIF:ID:n]} tags) they
+ * haven't seen yet. The channel is optional, so players without Reglia, or
+ * servers without it, still connect.
+ */
+public class RegliaNetwork {
+    private static final String VERSION = "1";
+
+    // Client: IDs asked for and not answered yet, or unknown to the server
+    private static final Set<Integer> REQUESTED = ConcurrentHashMap.newKeySet();
+
+    public record GifUrlRequest(int id) implements CustomPacketPayload {
+        public static final Type<GifUrlRequest> TYPE = new Type<>(
+                ResourceLocation.fromNamespaceAndPath(Reglia.MOD_ID, "gif_url_request"));
+        public static final StreamCodec<ByteBuf, GifUrlRequest> STREAM_CODEC = ByteBufCodecs.VAR_INT
+                .map(GifUrlRequest::new, GifUrlRequest::id);
+
+        @Override
+        public Type<GifUrlRequest> type() {
+            return TYPE;
+        }
+    }
+
+    /** Empty URL means the server doesn't know the ID (anymore). */
+    public record GifUrlResponse(int id, String url) implements CustomPacketPayload {
+        public static final Type<GifUrlResponse> TYPE = new Type<>(
+                ResourceLocation.fromNamespaceAndPath(Reglia.MOD_ID, "gif_url_response"));
+        public static final StreamCodec<ByteBuf, GifUrlResponse> STREAM_CODEC = StreamCodec.composite(
+                ByteBufCodecs.VAR_INT, GifUrlResponse::id,
+                ByteBufCodecs.STRING_UTF8, GifUrlResponse::url,
+                GifUrlResponse::new);
+
+        @Override
+        public Type<GifUrlResponse> type() {
+            return TYPE;
+        }
+    }
+
+    public static void register(RegisterPayloadHandlersEvent event) {
+        PayloadRegistrar registrar = event.registrar(VERSION).optional();
+        registrar.playToServer(GifUrlRequest.TYPE, GifUrlRequest.STREAM_CODEC, RegliaNetwork::handleRequest);
+        registrar.playToClient(GifUrlResponse.TYPE, GifUrlResponse.STREAM_CODEC, RegliaNetwork::handleResponse);
+    }
+
+    /**
+     * Client: asks the server for the URL behind an ID, once per ID. The caller
+     * checks that the server has the channel.
+     */
+    public static void requestUrl(int id) {
+        if (id > 0 && REQUESTED.add(id))
+            PacketDistributor.sendToServer(new GifUrlRequest(id));
+    }
+
+    /** Client: called when leaving a server. */
+    public static void clearRequests() {
+        REQUESTED.clear();
+    }
+
+    private static void handleRequest(GifUrlRequest request, IPayloadContext context) {
+        String url = request.id() > 0 ? GifRegistry.getUrl(request.id()) : null;
+        context.reply(new GifUrlResponse(request.id(), url != null ? url : ""));
+    }
+
+    private static void handleResponse(GifUrlResponse response, IPayloadContext context) {
+        // Unknown IDs stay in REQUESTED, asking again wouldn't change the answer
+        if (response.url().isEmpty())
+            return;
+        GifRegistry.put(response.id(), response.url());
+        REQUESTED.remove(response.id());
+    }
+}
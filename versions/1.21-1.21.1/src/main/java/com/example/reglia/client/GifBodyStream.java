@@ -0,0 +1,184 @@
+package com.example.reglia.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * HTTP body subscriber that hands a GIF to the decoder as it arrives and copies
+ * every chunk to a cache file on the way. The connection is only asked for more
+ * data once the decoder has taken the previous chunk, and the transfer fails
+ * once it passes a size limit or an overall deadline, so a huge or stalled GIF
+ * can't hold a download slot forever. It also fails once nobody wants the GIF
+ * anymore, e.g. after it scrolled out of view.
+ */
+final class GifBodyStream extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+    // Identity marker for end of stream, never handed out by the HTTP client
+    private static final List<ByteBuffer> END = Collections.unmodifiableList(new ArrayList<>());
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // How often a stalled transfer checks whether it is still wanted
+    private static final long WANTED_CHECK_MS = 500;
+
+    private final BlockingQueue<List<ByteBuffer>> queue = new LinkedBlockingQueue<>();
+    private final FileChannel file;
+    private final long maxBytes;
+    private final long deadline;
+    private final BooleanSupplier wanted;
+
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable error;
+
+    // Reader thread only
+    private Iterator<ByteBuffer> chunks = Collections.emptyIterator();
+    private ByteBuffer current = EMPTY;
+    private long received = 0;
+    private boolean finished = false;
+    private IOException failure;
+
+    GifBodyStream(FileChannel file, long maxBytes, long timeoutMs, BooleanSupplier wanted) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.deadline = System.currentTimeMillis() + timeoutMs;
+        this.wanted = wanted;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        queue.offer(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        queue.offer(END);
+    }
+
+    @Override
+    public void onComplete() {
+        queue.offer(END);
+    }
+
+    @Override
+    public CompletionStage<InputStream> getBody() {
+        return CompletableFuture.completedStage(this);
+    }
+
+    /** Bytes received so far, including any the decoder hasn't read yet. */
+    long received() {
+        return received;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return current.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Reads the rest of the body without handing it to anyone, so the cache file
+     * is complete even if the decoder stopped early.
+     */
+    void drain() throws IOException {
+        while (fill())
+            current.position(current.limit());
+    }
+
+    @Override
+    public void close() {
+        if (!finished)
+            cancel();
+    }
+
+    private boolean fill() throws IOException {
+        if (failure != null)
+            throw failure;
+        while (!current.hasRemaining()) {
+            if (chunks.hasNext()) {
+                nextChunk();
+                continue;
+            }
+            if (finished)
+                return false;
+
+            if (!wanted.getAsBoolean())
+                throw fail(new IOException("GIF no longer wanted"));
+            List<ByteBuffer> next;
+            long wait = deadline - System.currentTimeMillis();
+            try {
+                next = wait > 0 ? queue.poll(Math.min(wait, WANTED_CHECK_MS), TimeUnit.MILLISECONDS) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw fail(new InterruptedIOException("GIF download interrupted"));
+            }
+            if (next == null && wait > WANTED_CHECK_MS)
+                continue;
+            if (next == null)
+                throw fail(new IOException("GIF download timed out"));
+            if (next == END) {
+                finished = true;
+                if (error != null)
+                    throw fail(new IOException("GIF download failed", error));
+                return false;
+            }
+            chunks = next.iterator();
+            subscription.request(1);
+        }
+        return true;
+    }
+
+    private void nextChunk() throws IOException {
+        current = chunks.next();
+        received += current.remaining();
+        if (received > maxBytes)
+            throw fail(new IOException("GIF larger than " + (maxBytes / (1024 * 1024)) + " MB"));
+        ByteBuffer copy = current.duplicate();
+        while (copy.hasRemaining())
+            file.write(copy);
+    }
+
+    /** Aborts the transfer, every later read rethrows the same exception. */
+    private IOException fail(IOException e) {
+        failure = e;
+        cancel();
+        return e;
+    }
+
+    private void cancel() {
+        finished = true;
+        Flow.Subscription s = subscription;
+        if (s != null)
+            s.cancel();
+    }
+}
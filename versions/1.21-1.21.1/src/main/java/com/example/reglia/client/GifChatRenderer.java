@@ -0,0 +1,116 @@
+package com.example.reglia.client;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import com.mojang.blaze3d.vertex.BufferUploader;
+import com.mojang.blaze3d.vertex.DefaultVertexFormat;
+import com.mojang.blaze3d.vertex.Tesselator;
+import com.mojang.blaze3d.vertex.VertexFormat;
+import net.minecraft.client.gui.GuiGraphics;
+import net.minecraft.client.renderer.GameRenderer;
+import net.minecraft.resources.ResourceLocation;
+import org.joml.Matrix4f;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws GIFs embedded in chat. While the chat component renders, GIF lines are
+ * only recorded; once every line (background and text) is down, all visible
+ * GIFs are drawn in one batch on top, so later lines can't paint over them.
+ * Render thread only.
+ */
+public final class GifChatRenderer {
+    // Reused between frames, only the first `pending` entries are live
+    private static final List<Draw> DRAWS = new ArrayList<>();
+    private static int pending = 0;
+
+    private static final class Draw {
+        final Matrix4f pose = new Matrix4f();
+        GifManager.GifFrame frame;
+        int x, y, width, height;
+        float alpha;
+    }
+
+    private GifChatRenderer() {
+    }
+
+    /** Called before the chat component renders its lines. */
+    public static void beginChat() {
+        pending = 0;
+    }
+
+    /** Called after the chat component rendered its lines, draws the recorded GIFs. */
+    public static void endChat(GuiGraphics graphics) {
+        flush(graphics);
+    }
+
+    /**
+     * Records a GIF frame with the current transform, to be drawn by
+     * {@link #endChat}. Only called between {@link #beginChat} and {@link #endChat}.
+     */
+    public static void draw(GuiGraphics graphics, GifManager.GifFrame frame, int x, int y, int width, int height,
+            float alpha) {
+        if (pending == DRAWS.size())
+            DRAWS.add(new Draw());
+        Draw draw = DRAWS.get(pending++);
+        draw.pose.set(graphics.pose().last().pose());
+        draw.frame = frame;
+        draw.x = x;
+        draw.y = y;
+        draw.width = width;
+        draw.height = height;
+        draw.alpha = alpha;
+    }
+
+    /**
+     * Submits all recorded GIFs as textured quads, one draw call per atlas
+     * texture. Alpha goes into the vertex colour, so state is set once per flush
+     * instead of once per GIF.
+     */
+    private static void flush(GuiGraphics graphics) {
+        if (pending == 0)
+            return;
+
+        graphics.flush(); // Anything batched so far goes underneath
+        RenderSystem.setShader(GameRenderer::getPositionTexColorShader);
+        RenderSystem.enableBlend();
+        RenderSystem.defaultBlendFunc();
+
+        for (int i = 0; i < pending; i++) {
+            ResourceLocation texture = DRAWS.get(i).frame != null ? DRAWS.get(i).frame.texture() : null;
+            if (texture == null)
+                continue; // Already drawn with an earlier texture group
+
+            RenderSystem.setShaderTexture(0, texture);
+            BufferBuilder builder = Tesselator.getInstance().begin(VertexFormat.Mode.QUADS,
+                    DefaultVertexFormat.POSITION_TEX_COLOR);
+            for (int j = i; j < pending; j++) {
+                Draw draw = DRAWS.get(j);
+                if (draw.frame != null && draw.frame.texture().equals(texture)) {
+                    addQuad(builder, draw);
+                    draw.frame = null; // Marks it drawn, and doesn't keep evicted textures reachable
+                }
+            }
+            BufferUploader.drawWithShader(builder.buildOrThrow());
+        }
+
+        RenderSystem.disableBlend();
+        pending = 0;
+    }
+
+    private static void addQuad(BufferBuilder builder, Draw draw) {
+        GifManager.GifFrame frame = draw.frame;
+        float u0 = (float) frame.u() / frame.atlasWidth();
+        float u1 = (float) (frame.u() + frame.width()) / frame.atlasWidth();
+        float v0 = (float) frame.v() / frame.atlasHeight();
+        float v1 = (float) (frame.v() + frame.height()) / frame.atlasHeight();
+        int x1 = draw.x + draw.width;
+        int y1 = draw.y + draw.height;
+
+        builder.addVertex(draw.pose, draw.x, draw.y, 0).setUv(u0, v0).setColor(1.0f, 1.0f, 1.0f, draw.alpha);
+        builder.addVertex(draw.pose, draw.x, y1, 0).setUv(u0, v1).setColor(1.0f, 1.0f, 1.0f, draw.alpha);
+        builder.addVertex(draw.pose, x1, y1, 0).setUv(u1, v1).setColor(1.0f, 1.0f, 1.0f, draw.alpha);
+        builder.addVertex(draw.pose, x1, draw.y, 0).setUv(u1, v0).setColor(1.0f, 1.0f, 1.0f, draw.alpha);
+    }
+}
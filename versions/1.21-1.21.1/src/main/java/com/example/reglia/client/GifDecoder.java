@@ -0,0 +1,458 @@
+package com.example.reglia.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Minimal GIF decoder that composites frames straight into a reusable canvas
+ * laid out like NativeImage memory (ABGR ints), so frames can be copied to
+ * textures without any per-pixel conversion. Parses the LZW stream, graphic control extensions and disposal
+ * itself, so there is no ImageIO, DOM metadata or AWT involved.
+ * Not thread-safe: one instance per decode.
+ */
+public class GifDecoder {
+    private static final int MAX_LZW_CODES = 4096;
+    private static final int MAX_CANVAS_PIXELS = 4096 * 4096;
+
+    // Disposal methods from the graphic control extension
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    private final InputStream in;
+    private final byte[] readBuffer = new byte[8192];
+    private int readPos = 0;
+    private int readLimit = 0;
+
+    private final int width;
+    private final int height;
+    private final int[] canvas;
+    private int[] previousCanvas; // only allocated if a frame asks to restore to previous
+
+    private final int[] globalColorTable;
+    private final int[] localColorTable = new int[256];
+
+    // LZW tables, reused across frames
+    private final short[] prefix = new short[MAX_LZW_CODES];
+    private final byte[] suffix = new byte[MAX_LZW_CODES];
+    private final byte[] pixelStack = new byte[MAX_LZW_CODES + 1];
+    private final byte[] block = new byte[256];
+    private byte[] indices = new byte[0];
+
+    // Graphic control extension of the current frame
+    private int disposal = 0;
+    private boolean transparency = false;
+    private int transparentIndex = 0;
+    private int delay = 0;
+
+    // Bounds of the current frame, needed to dispose it before the next one
+    private int frameX, frameY, frameWidth, frameHeight;
+    private int framePacked;
+    private int lastDisposal = 0;
+    // The constructor reads ahead to the first image descriptor to size the canvas
+    private boolean firstFramePending;
+
+    public GifDecoder(InputStream in) throws IOException {
+        this.in = in;
+
+        if (read() != 'G' || read() != 'I' || read() != 'F')
+            throw new IOException("Not a GIF file");
+        skip(3); // Version, 87a and 89a decode the same way
+
+        // Logical screen descriptor
+        int screenWidth = readShort();
+        int screenHeight = readShort();
+        int packed = read();
+        read(); // Background colour index, disposal clears to transparent like browsers do
+        read(); // Pixel aspect ratio
+
+        globalColorTable = (packed & 0x80) != 0 ? readColorTable(new int[256], 2 << (packed & 7)) : null;
+
+        // Some encoders write a 0x0 or too small logical screen, grow the canvas to fit
+        // the first frame as long as that stays within the limit. Later frames reaching
+        // past it are clipped.
+        firstFramePending = nextDescriptor();
+        if (firstFramePending) {
+            int grownWidth = Math.max(screenWidth, frameX + frameWidth);
+            int grownHeight = Math.max(screenHeight, frameY + frameHeight);
+            if ((long) grownWidth * grownHeight <= MAX_CANVAS_PIXELS) {
+                screenWidth = grownWidth;
+                screenHeight = grownHeight;
+            }
+        }
+        if (screenWidth <= 0 || screenHeight <= 0 || (long) screenWidth * screenHeight > MAX_CANVAS_PIXELS)
+            throw new IOException("Unsupported GIF size " + screenWidth + "x" + screenHeight);
+
+        width = screenWidth;
+        height = screenHeight;
+        canvas = new int[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Composited ABGR pixels of the current frame, row-major. The array is reused,
+     * so copy it out before calling {@link #nextFrame()} again.
+     */
+    public int[] getCanvas() {
+        return canvas;
+    }
+
+    /** Delay of the current frame in milliseconds, as stored in the file. */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * Decodes the next frame onto the canvas.
+     *
+     * @return false once the trailer (or end of data) is reached
+     */
+    public boolean nextFrame() throws IOException {
+        if (firstFramePending) {
+            firstFramePending = false;
+        } else {
+            disposePrevious();
+            disposal = 0;
+            transparency = false;
+            delay = 0;
+            if (!nextDescriptor())
+                return false;
+        }
+        readImage();
+        return true;
+    }
+
+    /**
+     * Reads up to and including the next image descriptor, picking up its
+     * graphic control extension on the way.
+     *
+     * @return false once the trailer (or end of data) is reached
+     */
+    private boolean nextDescriptor() throws IOException {
+        while (true) {
+            int code = read();
+            switch (code) {
+                case 0x2C -> {
+                    frameX = readShort();
+                    frameY = readShort();
+                    frameWidth = readShort();
+                    frameHeight = readShort();
+                    framePacked = read();
+                    if (framePacked < 0 || frameX < 0 || frameY < 0 || frameWidth < 0 || frameHeight < 0)
+                        throw new IOException("Truncated image descriptor");
+                    return true;
+                }
+                case 0x21 -> {
+                    if (read() == 0xF9)
+                        readGraphicControl();
+                    else
+                        skipBlocks(); // Application, comment and plain text extensions
+                }
+                case 0x3B, -1 -> {
+                    return false;
+                }
+                default -> {
+                    // Stray padding byte, keep scanning
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts image descriptors without decoding any pixel data.
+     */
+    public static int countFrames(byte[] data) {
+        if (data.length < 13 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F')
+            return 0;
+        int pos = 13;
+        int packed = data[10] & 0xFF;
+        if ((packed & 0x80) != 0)
+            pos += 3 * (2 << (packed & 7));
+
+        int frames = 0;
+        while (pos < data.length) {
+            int code = data[pos++] & 0xFF;
+            if (code == 0x2C) {
+                if (pos + 9 > data.length)
+                    break;
+                int imagePacked = data[pos + 8] & 0xFF;
+                pos += 9;
+                if ((imagePacked & 0x80) != 0)
+                    pos += 3 * (2 << (imagePacked & 7));
+                pos++; // LZW minimum code size
+                pos = skipBlocks(data, pos);
+                frames++;
+            } else if (code == 0x21) {
+                pos = skipBlocks(data, pos + 1);
+            } else if (code == 0x3B) {
+                break;
+            }
+        }
+        return frames;
+    }
+
+    private static int skipBlocks(byte[] data, int pos) {
+        while (pos < data.length) {
+            int size = data[pos++] & 0xFF;
+            if (size == 0)
+                break;
+            pos += size;
+        }
+        return pos;
+    }
+
+    private void readGraphicControl() throws IOException {
+        read(); // Block size, always 4
+        int packed = read();
+        disposal = (packed & 0x1C) >> 2;
+        transparency = (packed & 1) != 0;
+        delay = readShort() * 10;
+        transparentIndex = read();
+        read(); // Block terminator
+    }
+
+    private void readImage() throws IOException {
+        int packed = framePacked;
+        boolean interlaced = (packed & 0x40) != 0;
+
+        int[] colorTable = (packed & 0x80) != 0 ? readColorTable(localColorTable, 2 << (packed & 7))
+                : globalColorTable;
+
+        if (disposal == DISPOSE_PREVIOUS) {
+            if (previousCanvas == null)
+                previousCanvas = new int[canvas.length];
+            System.arraycopy(canvas, 0, previousCanvas, 0, canvas.length);
+        }
+        lastDisposal = disposal;
+
+        // Only the part of the frame on the canvas is kept, so the index buffer never
+        // outgrows the canvas that was checked against MAX_CANVAS_PIXELS
+        int clipWidth = Math.max(0, Math.min(frameWidth, width - frameX));
+        int clipHeight = Math.max(0, Math.min(frameHeight, height - frameY));
+        int visible = clipWidth * clipHeight;
+        if (indices.length < visible)
+            indices = new byte[visible];
+        // Truncated data leaves the rest of the frame transparent-ish (index 0)
+        Arrays.fill(indices, 0, visible, (byte) 0);
+        decodeLzw(interlaced, clipWidth, clipHeight);
+
+        if (colorTable == null)
+            return; // No palette at all, nothing sensible to draw
+
+        // Composite onto the canvas, rows are already in display order
+        for (int line = 0; line < clipHeight; line++) {
+            int src = line * clipWidth;
+            int dst = (frameY + line) * width + frameX;
+            for (int x = 0; x < clipWidth; x++) {
+                int index = indices[src + x] & 0xFF;
+                if (transparency && index == transparentIndex)
+                    continue;
+                canvas[dst + x] = colorTable[index];
+            }
+        }
+    }
+
+    private void disposePrevious() {
+        if (lastDisposal == DISPOSE_BACKGROUND) {
+            int endY = Math.min(height, frameY + frameHeight);
+            int endX = Math.min(width, frameX + frameWidth);
+            for (int y = frameY; y < endY; y++) {
+                int row = y * width;
+                for (int x = frameX; x < endX; x++)
+                    canvas[row + x] = 0;
+            }
+        } else if (lastDisposal == DISPOSE_PREVIOUS && previousCanvas != null) {
+            System.arraycopy(previousCanvas, 0, canvas, 0, canvas.length);
+        }
+        lastDisposal = 0;
+    }
+
+    /**
+     * Decodes the current frame's pixels into {@link #indices}, de-interlaced and
+     * cut down to the {@code clipWidth} x {@code clipHeight} part on the canvas.
+     */
+    private void decodeLzw(boolean interlaced, int clipWidth, int clipHeight) throws IOException {
+        int dataSize = read();
+        if (dataSize < 1 || dataSize > 11)
+            throw new IOException("Invalid LZW code size " + dataSize);
+        int clear = 1 << dataSize;
+        int endOfInformation = clear + 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        for (int code = 0; code < clear; code++) {
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
+        }
+
+        int datum = 0;
+        int bits = 0;
+        int first = 0;
+        int top = 0;
+        int count = 0;
+        int blockPos = 0;
+        boolean terminated = false;
+
+        // Position of the next pixel within the frame
+        int column = 0;
+        int line = 0;
+        int pass = 1;
+        int step = interlaced ? 8 : 1;
+        boolean rowsLeft = frameWidth > 0 && frameHeight > 0;
+
+        while (rowsLeft) {
+            if (top == 0) {
+                if (bits < codeSize) {
+                    if (count == 0) {
+                        count = readBlock();
+                        if (count <= 0) {
+                            terminated = true;
+                            break;
+                        }
+                        blockPos = 0;
+                    }
+                    datum += (block[blockPos++] & 0xFF) << bits;
+                    bits += 8;
+                    count--;
+                    continue;
+                }
+
+                int code = datum & codeMask;
+                datum >>= codeSize;
+                bits -= codeSize;
+
+                if (code > available || code == endOfInformation)
+                    break;
+                if (code == clear) {
+                    codeSize = dataSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (oldCode == -1) {
+                    pixelStack[top++] = suffix[code];
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+
+                int inCode = code;
+                if (code == available) {
+                    pixelStack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code > clear) {
+                    pixelStack[top++] = suffix[code];
+                    code = prefix[code];
+                }
+                first = suffix[code] & 0xFF;
+                pixelStack[top++] = (byte) first;
+
+                // Table is full: keep decoding with the current codes until the encoder clears
+                if (available < MAX_LZW_CODES) {
+                    prefix[available] = (short) oldCode;
+                    suffix[available] = (byte) first;
+                    available++;
+                    if ((available & codeMask) == 0 && available < MAX_LZW_CODES) {
+                        codeSize++;
+                        codeMask += available;
+                    }
+                }
+                oldCode = inCode;
+            }
+
+            byte index = pixelStack[--top];
+            if (column < clipWidth && line < clipHeight)
+                indices[line * clipWidth + column] = index;
+            if (++column == frameWidth) {
+                column = 0;
+                line += step;
+                while (interlaced && line >= frameHeight && pass < 4) {
+                    pass++;
+                    switch (pass) {
+                        case 2 -> line = 4;
+                        case 3 -> {
+                            line = 2;
+                            step = 4;
+                        }
+                        case 4 -> {
+                            line = 1;
+                            step = 2;
+                        }
+                    }
+                }
+                // Rows below the canvas are never shown, stop once only those are left
+                rowsLeft = line < frameHeight && (line < clipHeight || (interlaced && pass < 4));
+            }
+        }
+
+        // Skip any sub-blocks left in this image (including the terminator)
+        if (!terminated)
+            skipBlocks();
+    }
+
+    private int[] readColorTable(int[] table, int entries) throws IOException {
+        for (int i = 0; i < entries; i++) {
+            int r = read();
+            int g = read();
+            int b = read();
+            if (b < 0)
+                throw new IOException("Truncated colour table");
+            table[i] = 0xFF000000 | (b << 16) | (g << 8) | r;
+        }
+        for (int i = entries; i < table.length; i++)
+            table[i] = 0xFF000000;
+        return table;
+    }
+
+    private int readBlock() throws IOException {
+        int size = read();
+        if (size <= 0)
+            return size;
+        for (int i = 0; i < size; i++) {
+            int b = read();
+            if (b < 0)
+                return i;
+            block[i] = (byte) b;
+        }
+        return size;
+    }
+
+    private void skipBlocks() throws IOException {
+        int size;
+        while ((size = read()) > 0)
+            skip(size);
+    }
+
+    private int readShort() throws IOException {
+        return read() | (read() << 8);
+    }
+
+    private void skip(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (read() < 0)
+                return;
+        }
+    }
+
+    private int read() throws IOException {
+        if (readPos == readLimit) {
+            readLimit = in.read(readBuffer, 0, readBuffer.length);
+            readPos = 0;
+            if (readLimit <= 0) {
+                readLimit = 0;
+                return -1;
+            }
+        }
+        return readBuffer[readPos++] & 0xFF;
+    }
+}
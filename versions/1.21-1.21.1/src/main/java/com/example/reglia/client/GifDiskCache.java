@@ -0,0 +1,384 @@
+package com.example.reglia.client;
+
+import com.example.reglia.Config;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed disk cache for downloaded GIFs and their decoded frames.
+ * Files are named by the SHA-256 of their URL and tracked in a persistent index
+ * (size + last access), so size checks are O(1) and lookups don't need
+ * exists/touch syscalls. Also remembers which media URL a Tenor/Giphy page
+ * link resolved to, so a page is only scraped once in a while.
+ */
+public class GifDiskCache {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Gson GSON = new Gson();
+
+    private static final Path CACHE_DIR = Paths.get("config", "reglia-cache");
+    private static final Path INDEX_FILE = CACHE_DIR.resolve("index.json");
+    private static final Path RESOLVED_FILE = CACHE_DIR.resolve("resolved.json");
+    // Page links rarely change their media, but re-check once a week
+    private static final long RESOLVED_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long INDEX_SAVE_DELAY_MS = 5000;
+    static final String GIF_SUFFIX = ".gif";
+    static final String FRAMES_SUFFIX = ".frames";
+    // Once over the configured cap, evict down to this fraction of it
+    private static final double LOW_WATER_MARK = 0.8;
+
+    private static final Map<String, Entry> INDEX = new HashMap<>();
+    private static final Map<String, Resolved> RESOLVED = new HashMap<>();
+    private static long totalSize = 0;
+    private static boolean loaded = false;
+    private static boolean saveScheduled = false;
+    private static boolean evictionScheduled = false;
+
+    // Index writes and eviction run here, never on the render or download threads
+    private static final ScheduledExecutorService WORKER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Reglia GIF cache");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static class Entry {
+        long size;
+        long lastAccess;
+
+        Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    static class Resolved {
+        String media;
+        long expires;
+
+        Resolved(String media, long expires) {
+            this.media = media;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Collision-free file name for a URL, one suffix per cache tier.
+     */
+    static String fileName(String url, String suffix) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(url.getBytes(StandardCharsets.UTF_8))) + suffix;
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    public static byte[] load(String url) {
+        Path file = lookup(url, GIF_SUFFIX);
+        if (file == null)
+            return null;
+        try {
+            return Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            // Deleted behind our back, forget it
+            remove(file.getFileName().toString());
+        } catch (Exception e) {
+            LOGGER.warn("[Reglia] Failed to read from cache", e);
+        }
+        return null;
+    }
+
+    public static void save(String url, byte[] data) {
+        Path file = pathFor(url, GIF_SUFFIX);
+        try {
+            Files.write(file, data);
+        } catch (Exception e) {
+            LOGGER.error("[Reglia] Failed to save to cache", e);
+            return;
+        }
+        record(url, GIF_SUFFIX, data.length);
+    }
+
+    /**
+     * Path of a cached file if the index knows it, marking it as recently used.
+     */
+    static Path lookup(String url, String suffix) {
+        String name = fileName(url, suffix);
+        synchronized (GifDiskCache.class) {
+            ensureLoaded();
+            Entry entry = INDEX.get(name);
+            if (entry == null)
+                return null;
+            entry.lastAccess = System.currentTimeMillis();
+            scheduleSave();
+        }
+        return CACHE_DIR.resolve(name);
+    }
+
+    /**
+     * Where a cache file for this URL should be written. Call {@link #record}
+     * once it is complete.
+     */
+    static Path pathFor(String url, String suffix) {
+        synchronized (GifDiskCache.class) {
+            ensureLoaded(); // Creates the cache directory on first use
+        }
+        return CACHE_DIR.resolve(fileName(url, suffix));
+    }
+
+    /**
+     * Scratch file to stream a cache entry into before {@link #commit} moves it
+     * in place, so readers never see half-written entries.
+     */
+    static Path tempFor(String url, String suffix) {
+        Path file = pathFor(url, suffix);
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    static void commit(String url, String suffix, Path tmp) throws IOException {
+        long size = Files.size(tmp);
+        Files.move(tmp, pathFor(url, suffix), StandardCopyOption.REPLACE_EXISTING);
+        record(url, suffix, size);
+    }
+
+    /**
+     * Media URL a page link resolved to earlier, or null if unknown or expired.
+     */
+    static synchronized String resolved(String pageUrl) {
+        ensureLoaded();
+        Resolved entry = RESOLVED.get(pageUrl);
+        if (entry == null)
+            return null;
+        if (entry.expires < System.currentTimeMillis()) {
+            RESOLVED.remove(pageUrl);
+            scheduleSave();
+            return null;
+        }
+        return entry.media;
+    }
+
+    static synchronized void putResolved(String pageUrl, String mediaUrl) {
+        ensureLoaded();
+        RESOLVED.put(pageUrl, new Resolved(mediaUrl, System.currentTimeMillis() + RESOLVED_TTL_MS));
+        scheduleSave();
+    }
+
+    static synchronized void record(String url, String suffix, long size) {
+        Entry previous = INDEX.put(fileName(url, suffix), new Entry(size, System.currentTimeMillis()));
+        totalSize += size - (previous != null ? previous.size : 0);
+        scheduleSave();
+        scheduleEvictionIfOverCap();
+    }
+
+    private static void scheduleEvictionIfOverCap() {
+        if (totalSize > maxSize() && !evictionScheduled) {
+            evictionScheduled = true;
+            WORKER.execute(GifDiskCache::evictLeastRecentlyUsed);
+        }
+    }
+
+    private static long maxSize() {
+        return Math.max(1, Config.gifCacheSizeMb) * 1024L * 1024L;
+    }
+
+    /**
+     * Deletes least-recently-used files until the cache is back under the low-water
+     * mark, instead of wiping everything once the cap is hit.
+     */
+    private static void evictLeastRecentlyUsed() {
+        Map<String, Entry> victims = new HashMap<>();
+        synchronized (GifDiskCache.class) {
+            evictionScheduled = false;
+            long target = (long) (maxSize() * LOW_WATER_MARK);
+            if (totalSize <= target)
+                return;
+            List<Map.Entry<String, Entry>> byAge = new ArrayList<>(INDEX.entrySet());
+            byAge.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            for (Map.Entry<String, Entry> e : byAge) {
+                if (totalSize <= target)
+                    break;
+                victims.put(e.getKey(), e.getValue());
+                totalSize -= e.getValue().size;
+            }
+            // Drop from the index first so no new lookups hit files we're about to delete
+            victims.keySet().forEach(INDEX::remove);
+            scheduleSave();
+        }
+        long freed = 0;
+        int evicted = 0;
+        for (Map.Entry<String, Entry> victim : victims.entrySet()) {
+            try {
+                Files.deleteIfExists(CACHE_DIR.resolve(victim.getKey()));
+                freed += victim.getValue().size;
+                evicted++;
+            } catch (Exception e) {
+                // Still on disk (e.g. open elsewhere on Windows): keep counting it, the
+                // next eviction tries again instead of leaving an untracked file behind
+                LOGGER.warn("[Reglia] Failed to evict cached GIF {}", victim.getKey(), e);
+                restore(victim.getKey(), victim.getValue());
+            }
+        }
+        LOGGER.info("[Reglia] Evicted {} cached GIFs ({} KB) to stay under {} MB", evicted, freed / 1024,
+                Config.gifCacheSizeMb);
+    }
+
+    /** Puts back an entry whose file couldn't be deleted, unless it was rewritten meanwhile. */
+    private static synchronized void restore(String name, Entry entry) {
+        if (INDEX.putIfAbsent(name, entry) == null) {
+            totalSize += entry.size;
+            scheduleSave();
+        }
+    }
+
+    public static synchronized long size() {
+        ensureLoaded();
+        return totalSize;
+    }
+
+    public static synchronized void clear() {
+        try {
+            if (Files.exists(CACHE_DIR)) {
+                try (Stream<Path> walk = Files.walk(CACHE_DIR)) {
+                    walk.sorted(Comparator.reverseOrder())
+                            .map(Path::toFile)
+                            .forEach(java.io.File::delete);
+                }
+            }
+            Files.createDirectories(CACHE_DIR);
+            INDEX.clear();
+            RESOLVED.clear();
+            totalSize = 0;
+            loaded = true;
+            LOGGER.info("[Reglia] Cache cleared successfully");
+        } catch (Exception e) {
+            LOGGER.error("[Reglia] Failed to clear cache", e);
+        }
+    }
+
+    private static synchronized void remove(String name) {
+        Entry entry = INDEX.remove(name);
+        if (entry != null) {
+            totalSize -= entry.size;
+            scheduleSave();
+        }
+    }
+
+    private static void ensureLoaded() {
+        if (loaded)
+            return;
+        loaded = true;
+        try {
+            Files.createDirectories(CACHE_DIR);
+            if (Files.exists(INDEX_FILE)) {
+                Map<String, Entry> stored = GSON.fromJson(Files.readString(INDEX_FILE),
+                        new TypeToken<Map<String, Entry>>() {
+                        }.getType());
+                if (stored != null)
+                    INDEX.putAll(stored);
+            }
+            // The index may be missing (first run or pre-index cache) or older than the
+            // files, if the game quit before it was saved: adopt whatever is on disk so it
+            // still counts towards the size limit, and forget entries whose file is gone
+            Map<String, Path> onDisk = new HashMap<>();
+            try (Stream<Path> files = Files.list(CACHE_DIR)) {
+                files.filter(p -> Files.isRegularFile(p) && !p.getFileName().toString().startsWith("index.json")
+                        && !p.getFileName().toString().startsWith("resolved.json")
+                        && !p.getFileName().toString().endsWith(".tmp"))
+                        .forEach(p -> onDisk.put(p.getFileName().toString(), p));
+            }
+            boolean changed = INDEX.keySet().retainAll(onDisk.keySet());
+            for (Map.Entry<String, Path> file : onDisk.entrySet()) {
+                if (!INDEX.containsKey(file.getKey())) {
+                    Path p = file.getValue();
+                    INDEX.put(file.getKey(), new Entry(p.toFile().length(), p.toFile().lastModified()));
+                    changed = true;
+                }
+            }
+            if (changed)
+                scheduleSave();
+        } catch (Exception e) {
+            LOGGER.warn("[Reglia] Failed to load cache index, starting empty", e);
+        }
+        try {
+            if (Files.exists(RESOLVED_FILE)) {
+                Map<String, Resolved> stored = GSON.fromJson(Files.readString(RESOLVED_FILE),
+                        new TypeToken<Map<String, Resolved>>() {
+                        }.getType());
+                if (stored != null)
+                    RESOLVED.putAll(stored);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("[Reglia] Failed to load resolved URLs, starting empty", e);
+        }
+        totalSize = INDEX.values().stream().mapToLong(e -> e.size).sum();
+        // The cap may have been lowered since last run
+        scheduleEvictionIfOverCap();
+    }
+
+    /**
+     * Writes the index now and waits for it, called when the game shuts down so
+     * files cached in the last few seconds aren't lost from it.
+     */
+    public static void flush() {
+        synchronized (GifDiskCache.class) {
+            if (!loaded)
+                return;
+        }
+        try {
+            WORKER.submit(GifDiskCache::saveIndex).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LOGGER.warn("[Reglia] Failed to save cache index on shutdown", e);
+        }
+    }
+
+    private static void scheduleSave() {
+        if (saveScheduled)
+            return;
+        saveScheduled = true;
+        WORKER.schedule(GifDiskCache::saveIndex, INDEX_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void saveIndex() {
+        String json;
+        String resolvedJson;
+        synchronized (GifDiskCache.class) {
+            saveScheduled = false;
+            long now = System.currentTimeMillis();
+            RESOLVED.values().removeIf(entry -> entry.expires < now);
+            json = GSON.toJson(INDEX);
+            resolvedJson = GSON.toJson(RESOLVED);
+        }
+        try {
+            writeAtomically(INDEX_FILE, json);
+            writeAtomically(RESOLVED_FILE, resolvedJson);
+        } catch (Exception e) {
+            LOGGER.warn("[Reglia] Failed to save cache index", e);
+        }
+    }
+
+    private static void writeAtomically(Path file, String content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, content);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.reglia.client;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Dedicated scheduler for GIF loads. GIFs on screen are served before
+ * prefetches, queued loads nobody wants anymore are dropped before they start,
+ * and concurrent downloads of the same resolved URL share one request.
+ */
+final class GifDownloadQueue {
+    enum Priority {
+        VISIBLE, PREFETCH
+    }
+
+    // Same limit the old download semaphore enforced, but threads wait in the queue
+    // instead of blocking common pool workers
+    private static final int THREADS = 3;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final Map<String, Task> QUEUED = new ConcurrentHashMap<>();
+    private static final Map<String, CompletableFuture<Path>> IN_FLIGHT = new ConcurrentHashMap<>();
+    // URLs whose running fetch other loads have joined
+    private static final Map<String, Boolean> SHARED = new ConcurrentHashMap<>();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 30,
+            TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "Reglia GIF download");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private GifDownloadQueue() {
+    }
+
+    /**
+     * Queues a load for {@code key}. {@code wanted} is checked right before the
+     * job starts, {@code onCancel} runs instead of the job if it returns false.
+     */
+    static void submit(String key, Priority priority, BooleanSupplier wanted, Runnable job, Runnable onCancel) {
+        Task task = new Task(priority, () -> {
+            if (wanted.getAsBoolean())
+                job.run();
+            else
+                onCancel.run();
+        });
+        task.key = key;
+        QUEUED.put(key, task);
+        EXECUTOR.execute(task);
+    }
+
+    /**
+     * Moves a queued load to the front of its new priority class, e.g. when a
+     * prefetched GIF scrolls into view. No-op once the load has started.
+     */
+    static void promote(String key, Priority priority) {
+        Task task = QUEUED.get(key);
+        if (task == null || task.priority.compareTo(priority) <= 0)
+            return;
+        // Re-insert rather than mutate, the heap ordering depends on the priority
+        if (EXECUTOR.getQueue().remove(task)) {
+            Task promoted = new Task(priority, task.job);
+            promoted.key = key;
+            QUEUED.put(key, promoted);
+            EXECUTOR.execute(promoted);
+        }
+    }
+
+    /** Runs continuations on the download threads at the given priority. */
+    static Executor executor(Priority priority) {
+        return job -> EXECUTOR.execute(new Task(priority, job));
+    }
+
+    /**
+     * Starts {@code download} for {@code url}, unless the same URL is already
+     * being fetched, in which case the running fetch's result is shared.
+     */
+    static CompletableFuture<Path> fetch(String url, Supplier<CompletableFuture<Path>> download) {
+        CompletableFuture<Path> mine = new CompletableFuture<>();
+        CompletableFuture<Path> running = IN_FLIGHT.putIfAbsent(url, mine);
+        if (running != null) {
+            SHARED.put(url, Boolean.TRUE);
+            return running;
+        }
+        CompletableFuture<Path> started;
+        try {
+            started = download.get();
+        } catch (RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        started.whenComplete((path, error) -> {
+            IN_FLIGHT.remove(url, mine);
+            SHARED.remove(url);
+            if (error != null)
+                mine.completeExceptionally(error);
+            else
+                mine.complete(path);
+        });
+        return mine;
+    }
+
+    /**
+     * Whether another load joined the running fetch of {@code url}, so it has to
+     * finish even if the load that started it isn't wanted anymore.
+     */
+    static boolean isShared(String url) {
+        return SHARED.containsKey(url);
+    }
+
+    private static final class Task implements Runnable, Comparable<Task> {
+        private final Priority priority;
+        private final long sequence = SEQUENCE.getAndIncrement();
+        private final Runnable job;
+        private String key; // Only set for tasks tracked in QUEUED
+
+        Task(Priority priority, Runnable job) {
+            this.priority = priority;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            if (key != null)
+                QUEUED.remove(key, this);
+            job.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,163 +1,634 @@
 package com.example.reglia.client;
 
+import com.example.reglia.mixin.NativeImageAccessor;
+import com.example.reglia.mixin.TextureManagerAccessor;
 import com.mojang.blaze3d.platform.NativeImage;
+import com.mojang.blaze3d.systems.RenderSystem;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.texture.AbstractTexture;
 import net.minecraft.client.renderer.texture.DynamicTexture;
 import net.minecraft.resources.ResourceLocation;
+import org.lwjgl.system.MemoryUtil;
 import org.slf4j.Logger;
 import com.mojang.logging.LogUtils;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class GifManager {
     private static final Logger LOGGER = LogUtils.getLogger();
     private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
             .followRedirects(HttpClient.Redirect.ALWAYS)
+            .connectTimeout(Duration.ofSeconds(10))
             .build();
     private static final Map<String, GifAnimation> CACHE = new ConcurrentHashMap<>();
     private static final Pattern OG_IMAGE_PATTERN = Pattern.compile("<meta property=\"og:image\" content=\"([^\"]+)\"");
     private static final Pattern TENOR_DIRECT_PATTERN = Pattern.compile("\"contentUrl\":\\s*\"([^\"]+\\.gif)\"");
+    // tenor.com/view/some-slug-gif-123456 and giphy.com/gifs/some-slug-AbC123 (or /embed/AbC123)
+    private static final Pattern TENOR_VIEW_ID_PATTERN = Pattern.compile("/view/[^/]*-(\\d+)/?$");
+    private static final Pattern GIPHY_ID_PATTERN = Pattern.compile("/(?:gifs|embed)/(?:[^/]*-)?([A-Za-z0-9]+)/?$");
 
-    // Cache configuration
-    private static final Path CACHE_DIR = Paths.get("config", "reglia-cache");
-    private static final long MAX_CACHE_SIZE_BYTES = 500 * 1024 * 1024; // 500MB
+    // Queued loads for GIFs that haven't been drawn for this long are dropped
+    private static final long VIEW_TIMEOUT_MS = 2000;
+    // Prefetches that haven't started by then are dropped too, unless drawn meanwhile
+    private static final long PREFETCH_TIMEOUT_MS = 30_000;
 
-    static {
-        try {
-            Files.createDirectories(CACHE_DIR);
-        } catch (Exception e) {
-            LOGGER.error("[Reglia] Failed to create cache directory", e);
-        }
-    }
+    // One huge or stalled GIF must not hold a download slot forever
+    private static final long MAX_DOWNLOAD_BYTES = 32L * 1024 * 1024; // 32MB
+    private static final long RESPONSE_TIMEOUT_MS = 10_000;
+    private static final long DOWNLOAD_TIMEOUT_MS = 30_000;
+
+    // Longer GIFs are downsampled (or cut off while streaming) to this many frames
+    private static final int MAX_FRAMES = 120;
 
-    // Limit concurrent downloads to prevent lag
-    private static final java.util.concurrent.Semaphore DOWNLOAD_LIMITER = new java.util.concurrent.Semaphore(3);
+    // Frames are packed into sprite-sheet atlases so a GIF costs a handful of
+    // textures (and binds) instead of one per frame
+    private static final int ATLAS_MAX_SIZE = 4096;
+    private static volatile int atlasSize = 2048;
+
+    // Budget for registered atlas pages, counting the native pixels and the GPU copy.
+    // Least-recently-drawn animations are closed past this and re-decoded from the
+    // disk cache when seen again.
+    private static final long TEXTURE_BUDGET_BYTES = 256L * 1024 * 1024; // 256MB
+    private static final long EVICTION_GRACE_MS = 5000;
+    private static long textureBytes = 0; // render thread only
+    private static long lastEvictionCheck = 0; // render thread only
+
+    /**
+     * A single animation frame: the atlas page it lives on plus its UV rect in
+     * pixels.
+     */
+    public record GifFrame(ResourceLocation texture, int u, int v, int width, int height, int atlasWidth,
+            int atlasHeight) {
+    }
 
     public static class GifAnimation {
-        public List<ResourceLocation> frames = new ArrayList<>();
-        public List<Integer> frameDelays = new ArrayList<>();
+        public List<ResourceLocation> atlases = new ArrayList<>();
+        // Same order as atlases, closed on eviction to free the native pixels too
+        final List<DynamicTexture> textures = new ArrayList<>();
+        public List<GifFrame> frames = new ArrayList<>();
+        // Cumulative end time (ms) of each published frame, so lookup is a binary search
+        public int[] frameEnds = new int[0];
+        // Non-zero while every frame has the same delay, lookup is then a plain division
+        public int uniformDelay = 0;
         public int totalDuration = 0;
         public int width = 0;
         public int height = 0;
         public boolean loading = true;
+
+        // Written on the render thread, also read by the download queue
+        volatile long lastDrawn = 0;
+        // Non-zero while queued as a prefetch: the time it stops being wanted
+        volatile long prefetchUntil = 0;
+        // Render thread only: LRU bookkeeping for the texture budget
+        long textureBytes = 0;
+        boolean decodeFinished = false;
+        // Decode thread only: the streamed decode stopped at MAX_FRAMES
+        boolean truncated = false;
+    }
+
+    /**
+     * Grid layout of frames on atlas pages. Every page has the same column count,
+     * the last page is trimmed to the rows it actually uses.
+     */
+    private record AtlasLayout(int frameWidth, int frameHeight, int frameCount, int columns, int framesPerPage) {
+        static AtlasLayout of(int frameWidth, int frameHeight, int frameCount, int maxSize) {
+            int columns = Math.max(1, Math.min(frameCount, maxSize / Math.max(1, frameWidth)));
+            int rows = Math.max(1, maxSize / Math.max(1, frameHeight));
+            return new AtlasLayout(frameWidth, frameHeight, frameCount, columns, columns * rows);
+        }
+
+        /**
+         * Layout for a GIF whose frame count isn't known yet: one row per page,
+         * so at most a row of cells is wasted if it ends before {@code maxFrames}.
+         */
+        static AtlasLayout streaming(int frameWidth, int frameHeight, int maxFrames, int maxSize) {
+            int columns = Math.max(1, Math.min(maxFrames, maxSize / Math.max(1, frameWidth)));
+            return new AtlasLayout(frameWidth, frameHeight, maxFrames, columns, columns);
+        }
+
+        /** The same grid cut down to the first {@code frames} frames. */
+        AtlasLayout trim(int frames) {
+            return new AtlasLayout(frameWidth, frameHeight, frames, columns, framesPerPage);
+        }
+
+        int pageCount() {
+            return (frameCount + framesPerPage - 1) / framesPerPage;
+        }
+
+        int pageWidth() {
+            return columns * frameWidth;
+        }
+
+        int pageHeight(int page) {
+            int framesOnPage = Math.min(framesPerPage, frameCount - page * framesPerPage);
+            return ((framesOnPage + columns - 1) / columns) * frameHeight;
+        }
+
+        int page(int frame) {
+            return frame / framesPerPage;
+        }
+
+        int cellX(int frame) {
+            return (frame % framesPerPage) % columns * frameWidth;
+        }
+
+        int cellY(int frame) {
+            return (frame % framesPerPage) / columns * frameHeight;
+        }
+    }
+
+    /**
+     * Streams decoded frames to the render thread. The decode thread fills atlas
+     * pages (allocated lazily as frames reach them) and hands over frame counts,
+     * the render thread registers each page on first use and uploads only the
+     * newly published cells after that.
+     */
+    private static final class AtlasUpload {
+        // Publish frame 0 immediately, then in small batches to keep render thread tasks cheap
+        private static final int PUBLISH_BATCH = 8;
+
+        private final String url;
+        private final GifAnimation anim;
+        private final AtlasLayout layout;
+        private final NativeImage[] pages;
+        private final DynamicTexture[] textures;
+        private final IntBuffer[] pageBuffers;
+        private final long[] pageAddresses;
+        private final int[] delays;
+        private int decoded = 0; // decode thread only
+        private int pendingDelay = 0; // decode thread only
+        private int published = 0; // render thread only
+
+        AtlasUpload(String url, GifAnimation anim, AtlasLayout layout) {
+            this.url = url;
+            this.anim = anim;
+            this.layout = layout;
+            this.pages = new NativeImage[layout.pageCount()];
+            this.textures = new DynamicTexture[layout.pageCount()];
+            this.pageBuffers = new IntBuffer[layout.pageCount()];
+            this.pageAddresses = new long[layout.pageCount()];
+            this.delays = new int[layout.frameCount()];
+        }
+
+        /**
+         * Decode thread: pixel memory of the page the next frame goes to, viewed
+         * directly over the NativeImage's off-heap buffer.
+         */
+        IntBuffer nextPage() {
+            return page(layout.page(decoded));
+        }
+
+        /** Decode thread: pixel memory of a page, allocating it on first use. */
+        IntBuffer page(int page) {
+            if (pages[page] == null) {
+                pages[page] = new NativeImage(layout.pageWidth(), layout.pageHeight(page), true);
+                pageAddresses[page] = ((NativeImageAccessor) (Object) pages[page]).reglia$getPixels();
+                pageBuffers[page] = MemoryUtil.memIntBuffer(pageAddresses[page],
+                        layout.pageWidth() * layout.pageHeight(page));
+            }
+            return pageBuffers[page];
+        }
+
+        /** Decode thread: the same page memory as raw bytes, for the decoded frame cache. */
+        ByteBuffer pageBytes(int page) {
+            page(page);
+            return MemoryUtil.memByteBuffer(pageAddresses[page], 4 * layout.pageWidth() * layout.pageHeight(page));
+        }
+
+        int nextCellX() {
+            return layout.cellX(decoded);
+        }
+
+        int nextCellY() {
+            return layout.cellY(decoded);
+        }
+
+        boolean isFull() {
+            return decoded >= layout.frameCount();
+        }
+
+        /**
+         * Decode thread: add the delay of a source frame to the output frame being
+         * filled. Frames skipped by downsampling add theirs too, so playback speed
+         * is preserved.
+         */
+        void addDelay(int delayMs) {
+            // Browsers treat 0/10ms delays as "as fast as allowed" and play them at 100ms
+            pendingDelay += delayMs < 20 ? 100 : delayMs;
+        }
+
+        /** Decode thread: mark the next frame (pixels and delay) as fully written. */
+        void frameDecoded() {
+            delays[decoded] = pendingDelay;
+            pendingDelay = 0;
+            decoded++;
+            if (decoded == 1 || decoded % PUBLISH_BATCH == 0)
+                flush();
+        }
+
+        /** Decode thread: hand everything decoded so far to the render thread. */
+        void flush() {
+            int upTo = decoded;
+            Minecraft.getInstance().execute(() -> publish(upTo));
+        }
+
+        /** Decode thread: publish what we have and free pages that never got a frame. */
+        void finish(boolean complete) {
+            int upTo = decoded;
+            Minecraft.getInstance().execute(() -> {
+                publish(upTo);
+                for (int p = 0; p < pages.length; p++) {
+                    if (textures[p] == null && pages[p] != null) {
+                        pages[p].close();
+                        pages[p] = null;
+                    }
+                }
+                anim.loading = false;
+                anim.decodeFinished = true;
+                LOGGER.info("[Reglia] " + (complete ? "Registered " : "Partially registered ") + published
+                        + " frames on " + anim.atlases.size() + " atlas textures for " + url);
+            });
+        }
+
+        private void publish(int upTo) {
+            if (anim.frameEnds.length < layout.frameCount()) {
+                anim.frameEnds = Arrays.copyOf(anim.frameEnds, layout.frameCount());
+                anim.uniformDelay = delays[0];
+            }
+            for (int i = published; i < upTo; i++) {
+                int page = layout.page(i);
+                int cellX = layout.cellX(i);
+                int cellY = layout.cellY(i);
+                if (textures[page] == null) {
+                    // Registering uploads the whole page, including every cell written so far
+                    textures[page] = new DynamicTexture(pages[page]);
+                    String texturePath = "reglia_gif_" + Math.abs(url.hashCode()) + "_" + page;
+                    anim.atlases.add(Minecraft.getInstance().getTextureManager().register(texturePath,
+                            textures[page]));
+                    anim.textures.add(textures[page]);
+                    // The page stays in native memory next to its GPU copy
+                    long bytes = 2 * 4L * layout.pageWidth() * layout.pageHeight(page);
+                    anim.textureBytes += bytes;
+                    textureBytes += bytes;
+                    evictIfNeeded();
+                } else {
+                    textures[page].bind();
+                    pages[page].upload(0, cellX, cellY, cellX, cellY, layout.frameWidth(), layout.frameHeight(),
+                            false, false);
+                }
+                anim.frames.add(new GifFrame(anim.atlases.get(page), cellX, cellY, layout.frameWidth(),
+                        layout.frameHeight(), layout.pageWidth(), layout.pageHeight(page)));
+                anim.totalDuration += delays[i];
+                anim.frameEnds[i] = anim.totalDuration;
+                if (delays[i] != anim.uniformDelay)
+                    anim.uniformDelay = 0;
+            }
+            published = Math.max(published, upTo);
+            if (published > 0)
+                anim.loading = false;
+        }
     }
 
     public static GifAnimation getAnimation(String url) {
         return url == null ? null : CACHE.get(url);
     }
 
-    public static ResourceLocation getFrame(String url) {
+    public static GifFrame getFrame(String url) {
         if (url == null)
             return null;
         GifAnimation anim = CACHE.get(url);
         if (anim == null) {
+            // Query GL limits here on the render thread, decode threads only read the result
+            atlasSize = Math.min(ATLAS_MAX_SIZE, RenderSystem.maxSupportedTextureSize());
             anim = new GifAnimation();
+            anim.lastDrawn = System.currentTimeMillis();
             CACHE.put(url, anim);
             LOGGER.info("[Reglia] First request for GIF: " + url);
-            downloadAndProcess(url, anim);
+            downloadAndProcess(url, anim, GifDownloadQueue.Priority.VISIBLE);
             return null;
         }
+        anim.lastDrawn = System.currentTimeMillis();
+        if (anim.prefetchUntil != 0 && anim.loading) {
+            // Prefetched GIF came into view, stop waiting behind other prefetches
+            anim.prefetchUntil = 0;
+            GifDownloadQueue.promote(url, GifDownloadQueue.Priority.VISIBLE);
+        }
+        if (textureBytes > TEXTURE_BUDGET_BYTES && anim.lastDrawn - lastEvictionCheck > 1000) {
+            // Animations skipped earlier may have scrolled out of view since
+            lastEvictionCheck = anim.lastDrawn;
+            evictIfNeeded();
+        }
         if (anim.loading || anim.frames.isEmpty())
             return null;
 
-        long time = System.currentTimeMillis() % Math.max(1, anim.totalDuration);
-        int accumulated = 0;
-        for (int i = 0; i < anim.frames.size(); i++) {
-            accumulated += anim.frameDelays.get(i);
-            if (time < accumulated)
-                return anim.frames.get(i);
+        int count = anim.frames.size();
+        int time = (int) (System.currentTimeMillis() % Math.max(1, anim.totalDuration));
+        if (anim.uniformDelay > 0)
+            return anim.frames.get(Math.min(count - 1, time / anim.uniformDelay));
+
+        // First frame whose end time is past the current time
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (anim.frameEnds[mid] <= time)
+                low = mid + 1;
+            else
+                high = mid;
         }
-        return anim.frames.get(0);
+        return anim.frames.get(low);
     }
 
-    private static void downloadAndProcess(String url, GifAnimation anim) {
-        CompletableFuture.runAsync(() -> {
-            try {
-                // Check disk cache first
-                byte[] cachedData = loadFromDisk(url);
-                if (cachedData != null) {
-                    LOGGER.info("[Reglia] Loaded GIF from disk cache: " + url);
-                    processGifData(url, cachedData, anim);
-                    return;
-                }
+    /**
+     * Render thread: starts loading a GIF that is likely to be shown soon, behind
+     * everything currently on screen.
+     */
+    public static void prefetch(String url) {
+        if (url == null)
+            return;
+        long until = System.currentTimeMillis() + PREFETCH_TIMEOUT_MS;
+        GifAnimation existing = CACHE.get(url);
+        if (existing != null) {
+            // Still loading, e.g. queued for an earlier page of results: keep it wanted
+            if (existing.loading)
+                existing.prefetchUntil = until;
+            return;
+        }
+        atlasSize = Math.min(ATLAS_MAX_SIZE, RenderSystem.maxSupportedTextureSize());
+        GifAnimation anim = new GifAnimation();
+        anim.prefetchUntil = until;
+        if (CACHE.putIfAbsent(url, anim) == null)
+            downloadAndProcess(url, anim, GifDownloadQueue.Priority.PREFETCH);
+    }
 
-                // Limit concurrent downloads to prevent lag
-                DOWNLOAD_LIMITER.acquire();
-                try {
-                    // Check cache size and clean if needed before downloading new stuff
-                    checkCacheSizeAndClean();
+    /**
+     * Render thread: the prefetched results are gone (selector closed or a new
+     * search), queued prefetches that haven't started are dropped.
+     */
+    public static void cancelPrefetches() {
+        for (GifAnimation anim : CACHE.values()) {
+            anim.prefetchUntil = 0;
+        }
+    }
 
-                    LOGGER.info("[Reglia] Resolving GIF URL: " + url);
-                    String resolvedUrl = resolveUrl(url);
-                    LOGGER.info("[Reglia] Downloading from: " + resolvedUrl);
+    /**
+     * Render thread: release least-recently-drawn animations until registered
+     * textures fit the budget again. Animations still decoding are never evicted
+     * since their decode thread keeps writing into the atlas pages.
+     */
+    private static void evictIfNeeded() {
+        long now = System.currentTimeMillis();
+        while (textureBytes > TEXTURE_BUDGET_BYTES) {
+            Map.Entry<String, GifAnimation> oldest = null;
+            for (Map.Entry<String, GifAnimation> entry : CACHE.entrySet()) {
+                GifAnimation candidate = entry.getValue();
+                if (!candidate.decodeFinished || candidate.textureBytes == 0
+                        || now - candidate.lastDrawn < EVICTION_GRACE_MS)
+                    continue;
+                if (oldest == null || candidate.lastDrawn < oldest.getValue().lastDrawn)
+                    oldest = entry;
+            }
+            if (oldest == null)
+                return; // Everything over budget is on screen right now
 
-                    HttpRequest request = HttpRequest.newBuilder(URI.create(resolvedUrl))
-                            .header("User-Agent", "Mozilla/5.0 Reglia Mod")
-                            .build();
+            GifAnimation evicted = oldest.getValue();
+            CACHE.remove(oldest.getKey());
+            LOGGER.info("[Reglia] Evicted GIF from memory (" + (evicted.textureBytes / 1024) + " KB): "
+                    + oldest.getKey());
+            release(evicted);
+        }
+    }
 
-                    HttpResponse<byte[]> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofByteArray());
-                    byte[] data = response.body();
+    /** Render thread: frees the textures of an animation that is no longer cached. */
+    private static void release(GifAnimation anim) {
+        // TextureManager.release only frees the GL id: unregister the textures and
+        // close them, which also frees their NativeImage pages
+        Map<ResourceLocation, AbstractTexture> registered = ((TextureManagerAccessor) Minecraft.getInstance()
+                .getTextureManager()).reglia$getByPath();
+        for (ResourceLocation atlas : anim.atlases) {
+            registered.remove(atlas);
+        }
+        for (DynamicTexture texture : anim.textures) {
+            texture.close();
+        }
+        textureBytes -= anim.textureBytes;
+        anim.textureBytes = 0;
+    }
 
-                    if (data == null || data.length < 10) {
-                        throw new Exception("Empty or invalid data received");
-                    }
+    private static void downloadAndProcess(String url, GifAnimation anim, GifDownloadQueue.Priority priority) {
+        GifDownloadQueue.submit(url, priority, () -> isWanted(anim), () -> load(url, anim, priority), () -> {
+            // Nobody is looking at it anymore, the next draw queues it again
+            CACHE.remove(url, anim);
+            LOGGER.info("[Reglia] Dropped GIF load, no longer visible: " + url);
+        });
+    }
+
+    private static boolean isWanted(GifAnimation anim) {
+        long now = System.currentTimeMillis();
+        return now < anim.prefetchUntil || now - anim.lastDrawn < VIEW_TIMEOUT_MS;
+    }
 
-                    // Save to disk cache
-                    saveToDisk(url, data);
+    /** Download thread: disk cache tiers first, then the network. */
+    private static void load(String url, GifAnimation anim, GifDownloadQueue.Priority priority) {
+        try {
+            // Already-decoded frames skip the whole decode pipeline
+            if (loadDecodedFrames(url, anim)) {
+                LOGGER.info("[Reglia] Loaded decoded frames from disk cache: " + url);
+                return;
+            }
 
-                    LOGGER.info("[Reglia] Downloaded " + data.length + " bytes. Processing OFF render thread...");
-                    processGifData(url, data, anim);
+            // Check disk cache first
+            byte[] cachedData = GifDiskCache.load(url);
+            if (cachedData != null) {
+                LOGGER.info("[Reglia] Loaded GIF from disk cache: " + url);
+                processGifData(url, cachedData, anim);
+                return;
+            }
 
-                } finally {
-                    DOWNLOAD_LIMITER.release();
+            LOGGER.info("[Reglia] Resolving GIF URL: " + url);
+            resolveUrl(url).whenCompleteAsync((resolvedUrl, error) -> {
+                if (error != null) {
+                    LOGGER.error("[Reglia] Failed to resolve GIF: " + url, error);
+                    anim.loading = false;
+                    return;
                 }
+                download(url, resolvedUrl, anim, priority);
+            }, GifDownloadQueue.executor(priority));
+        } catch (Exception e) {
+            LOGGER.error("[Reglia] Failed to download GIF: " + url, e);
+            anim.loading = false;
+        }
+    }
+
+    private static void download(String url, String resolvedUrl, GifAnimation anim,
+            GifDownloadQueue.Priority priority) {
+        // Page scrapes take a while, check again before the actual download
+        if (!isWanted(anim)) {
+            CACHE.remove(url, anim);
+            return;
+        }
+
+        // Different page URLs often resolve to the same media, download it once. Whoever
+        // starts the download decodes while streaming, the others decode the cached file.
+        boolean[] streamed = new boolean[1];
+        GifDownloadQueue.fetch(resolvedUrl, () -> {
+            streamed[0] = true;
+            return streamDownload(url, resolvedUrl, anim, priority);
+        }).whenCompleteAsync((file, error) -> {
+            if (error != null && !isWanted(anim)) {
+                // Scrolled away mid-download, drop what was shown so the next draw starts over
+                LOGGER.info("[Reglia] Cancelled GIF load, no longer visible: " + url);
+                Minecraft.getInstance().execute(() -> {
+                    if (CACHE.remove(url, anim))
+                        release(anim);
+                });
+                return;
+            }
+            if (error != null) {
+                LOGGER.error("[Reglia] Failed to download GIF: " + url, error);
+                anim.loading = false;
+                return;
+            }
+            if (streamed[0])
+                return;
+            try {
+                byte[] data = Files.readAllBytes(file);
+                GifDiskCache.save(url, data);
+                processGifData(url, data, anim);
             } catch (Exception e) {
-                LOGGER.error("[Reglia] Failed to download GIF: " + url, e);
+                LOGGER.error("[Reglia] Failed to read shared download for " + url, e);
                 anim.loading = false;
             }
-        });
+        }, GifDownloadQueue.executor(priority));
     }
 
-    private static void processGifData(String url, byte[] data, GifAnimation anim) {
+    /**
+     * Streams the response into the decoder and the disk cache at once. Completes
+     * with the cache file once the whole body is on disk.
+     */
+    private static CompletableFuture<Path> streamDownload(String url, String resolvedUrl, GifAnimation anim,
+            GifDownloadQueue.Priority priority) {
+        LOGGER.info("[Reglia] Downloading from: " + resolvedUrl);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(resolvedUrl))
+                .timeout(Duration.ofMillis(RESPONSE_TIMEOUT_MS))
+                .header("User-Agent", "Mozilla/5.0 Reglia Mod")
+                .build();
+
+        Path tmp = GifDiskCache.tempFor(url, GifDiskCache.GIF_SUFFIX);
+        FileChannel file;
         try {
-            // Process frames on THIS async thread (not render thread!)
-            List<NativeImage> processedFrames = processGifFrames(url, data, anim);
+            file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // A started download is abandoned once its GIF isn't wanted anymore, unless another
+        // load is waiting for the same file
+        GifBodyStream body = new GifBodyStream(file, MAX_DOWNLOAD_BYTES, DOWNLOAD_TIMEOUT_MS,
+                () -> isWanted(anim) || GifDownloadQueue.isShared(resolvedUrl));
 
-            // Only register textures on render thread (lightweight)
-            if (!processedFrames.isEmpty()) {
-                Minecraft.getInstance().execute(() -> {
-                    for (int i = 0; i < processedFrames.size(); i++) {
-                        DynamicTexture texture = new DynamicTexture(processedFrames.get(i));
-                        String texturePath = "reglia_gif_" + Math.abs(url.hashCode()) + "_" + i;
-                        ResourceLocation loc = Minecraft.getInstance().getTextureManager().register(texturePath,
-                                texture);
-                        anim.frames.add(loc);
-                        anim.frameDelays.add(100);
-                        anim.totalDuration += 100;
+        // Only the decode itself runs on a download thread, nothing blocks while
+        // waiting for the response headers
+        return HTTP_CLIENT.sendAsync(request, info -> body)
+                .thenApplyAsync(response -> receive(url, response, body, file, tmp, anim),
+                        GifDownloadQueue.executor(priority))
+                .whenComplete((path, error) -> {
+                    body.close();
+                    try {
+                        file.close();
+                        if (error != null)
+                            Files.deleteIfExists(tmp);
+                    } catch (IOException ignored) {
                     }
-                    anim.loading = false;
-                    LOGGER.info("[Reglia] Registered " + processedFrames.size() + " textures for " + url);
                 });
+    }
+
+    private static Path receive(String url, HttpResponse<InputStream> response, GifBodyStream body,
+            FileChannel file, Path tmp, GifAnimation anim) {
+        try {
+            if (response.statusCode() / 100 != 2)
+                throw new IOException("HTTP " + response.statusCode());
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            if (length > MAX_DOWNLOAD_BYTES)
+                throw new IOException("GIF too large (" + (length / 1024) + " KB)");
+
+            // Frames show up while the rest of the file is still arriving
+            if (!processGifStream(url, body, anim))
+                anim.loading = false;
+
+            // The decoder may stop early, the cache still wants the whole file
+            body.drain();
+            file.close();
+            if (body.received() < 10)
+                throw new IOException("Empty or invalid data received");
+            GifDiskCache.commit(url, GifDiskCache.GIF_SUFFIX, tmp);
+            LOGGER.info("[Reglia] Downloaded " + body.received() + " bytes for " + url);
+            Path path = GifDiskCache.pathFor(url, GifDiskCache.GIF_SUFFIX);
+            if (anim.truncated)
+                redecode(url, path, anim);
+            return path;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Decodes a GIF that was cut off at {@link #MAX_FRAMES} while streaming again
+     * from the complete file, downsampled over its whole length, and swaps it in
+     * for the truncated animation once done. The truncated one plays meanwhile.
+     */
+    private static void redecode(String url, Path path, GifAnimation truncated) {
+        if (CACHE.get(url) != truncated)
+            return; // Evicted or cleared meanwhile
+        GifAnimation full = new GifAnimation();
+        full.lastDrawn = truncated.lastDrawn;
+        try {
+            if (!processGifFrames(url, Files.readAllBytes(path), full))
+                return;
+        } catch (Exception e) {
+            LOGGER.error("[Reglia] Error processing GIF data for " + url, e);
+            return;
+        }
+        // Runs after the decode's own render thread tasks, so every frame is published
+        Minecraft.getInstance().execute(() -> {
+            if (CACHE.replace(url, truncated, full)) {
+                full.lastDrawn = Math.max(full.lastDrawn, truncated.lastDrawn);
+                release(truncated);
+                LOGGER.info("[Reglia] Replaced truncated GIF with all of its frames: " + url);
             } else {
+                release(full);
+            }
+        });
+    }
+
+    private static void processGifData(String url, byte[] data, GifAnimation anim) {
+        try {
+            // Decode on THIS async thread (not render thread!), frames are streamed to the
+            // render thread as they complete so the first one shows up right away
+            if (!processGifFrames(url, data, anim)) {
                 anim.loading = false;
             }
         } catch (Exception e) {
@@ -168,93 +639,265 @@ public class GifManager {
 
     // --- Cache Management ---
 
-    private static String getCacheKey(String url) {
-        return Integer.toHexString(url.hashCode()) + ".gif";
+    public static long getCacheSize() {
+        return GifDiskCache.size();
     }
 
-    private static void saveToDisk(String url, byte[] data) {
-        try {
-            Path file = CACHE_DIR.resolve(getCacheKey(url));
-            Files.write(file, data, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    public static void clearCache() {
+        GifDiskCache.clear();
+    }
+
+    // --- Decoded frame cache ---
+    //
+    // Layout: magic, version, frame width/height, frame count, atlas columns and
+    // frames per page, one delay per frame, then each atlas page as a
+    // length-prefixed deflate stream of raw NativeImage pixels. Pages inflate
+    // straight into texture memory on reload.
+
+    private static final int FRAMES_MAGIC = 0x52474C46; // "RGLF"
+    private static final int FRAMES_VERSION = 1;
+
+    private static void saveDecodedFrames(String url, AtlasUpload upload) {
+        // Streamed decodes can end before filling their layout, only store what exists,
+        // packed the way a decode of the whole file would have laid it out. Cells fill
+        // rows top to bottom, so the used part of a page is a prefix of it.
+        AtlasLayout source = upload.layout.trim(upload.decoded);
+        AtlasLayout layout = AtlasLayout.of(source.frameWidth(), source.frameHeight(), source.frameCount(),
+                atlasSize);
+        ByteBuffer repacked = null;
+        Path tmp = GifDiskCache.tempFor(url, GifDiskCache.FRAMES_SUFFIX);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(4 * (7 + layout.frameCount()));
+            header.putInt(FRAMES_MAGIC).putInt(FRAMES_VERSION)
+                    .putInt(layout.frameWidth()).putInt(layout.frameHeight()).putInt(layout.frameCount())
+                    .putInt(layout.columns()).putInt(layout.framesPerPage());
+            for (int i = 0; i < layout.frameCount(); i++)
+                header.putInt(upload.delays[i]);
+            writeFully(channel, header.flip());
+
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (int p = 0; p < layout.pageCount(); p++) {
+                long lengthPosition = channel.position();
+                writeFully(channel, length.clear().putInt(0).flip());
+
+                int pageBytes = 4 * layout.pageWidth() * layout.pageHeight(p);
+                ByteBuffer pixels;
+                if (layout.equals(source)) {
+                    pixels = upload.pageBytes(p).limit(pageBytes);
+                } else {
+                    if (repacked == null || repacked.capacity() < pageBytes)
+                        repacked = ByteBuffer.allocate(pageBytes);
+                    pixels = repack(upload, source, layout, p, repacked.clear().limit(pageBytes));
+                }
+                deflater.reset();
+                deflater.setInput(pixels);
+                deflater.finish();
+                int compressed = 0;
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(chunk.clear());
+                    compressed += n;
+                    writeFully(channel, chunk.flip());
+                }
+                channel.write(length.clear().putInt(compressed).flip(), lengthPosition);
+            }
         } catch (Exception e) {
-            LOGGER.error("[Reglia] Failed to save to cache", e);
+            LOGGER.warn("[Reglia] Failed to cache decoded frames for " + url, e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (Exception ignored) {
+            }
+            return;
+        } finally {
+            deflater.end();
         }
-    }
 
-    private static byte[] loadFromDisk(String url) {
         try {
-            Path file = CACHE_DIR.resolve(getCacheKey(url));
-            if (Files.exists(file)) {
-                // Update modification time for LRU cleanup
-                Files.setLastModifiedTime(file,
-                        java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
-                return Files.readAllBytes(file);
-            }
+            GifDiskCache.commit(url, GifDiskCache.FRAMES_SUFFIX, tmp);
         } catch (Exception e) {
-            LOGGER.warn("[Reglia] Failed to read from cache", e);
+            LOGGER.warn("[Reglia] Failed to cache decoded frames for " + url, e);
         }
-        return null;
     }
 
-    public static long getCacheSize() {
-        try {
-            if (!Files.exists(CACHE_DIR))
-                return 0;
-            try (Stream<Path> walk = Files.walk(CACHE_DIR)) {
-                return walk.filter(p -> p.toFile().isFile())
-                        .mapToLong(p -> p.toFile().length())
-                        .sum();
+    /** Copies the frames of one page of {@code target} out of the upload's pages. */
+    private static ByteBuffer repack(AtlasUpload upload, AtlasLayout source, AtlasLayout target, int page,
+            ByteBuffer into) {
+        int rowBytes = 4 * target.frameWidth();
+        int first = page * target.framesPerPage();
+        int last = Math.min(target.frameCount(), first + target.framesPerPage());
+        for (int frame = first; frame < last; frame++) {
+            ByteBuffer from = upload.pageBytes(source.page(frame));
+            int fromX = source.cellX(frame);
+            int fromY = source.cellY(frame);
+            int toX = target.cellX(frame);
+            int toY = target.cellY(frame);
+            for (int y = 0; y < target.frameHeight(); y++) {
+                into.put(4 * ((toY + y) * target.pageWidth() + toX), from,
+                        4 * ((fromY + y) * source.pageWidth() + fromX), rowBytes);
             }
-        } catch (Exception e) {
-            LOGGER.error("[Reglia] Failed to calculate cache size", e);
-            return 0;
         }
+        return into;
     }
 
-    public static void clearCache() {
-        try {
-            if (Files.exists(CACHE_DIR)) {
-                try (Stream<Path> walk = Files.walk(CACHE_DIR)) {
-                    walk.sorted(Comparator.reverseOrder())
-                            .map(Path::toFile)
-                            .forEach(java.io.File::delete);
+    /**
+     * Streams cached frames from the file into atlas pages, one compressed page
+     * at a time. Returns false if there is no usable entry and the GIF has to be
+     * decoded instead. The file is read, not mapped, so it is closed on return
+     * and the cache can delete it right away.
+     */
+    private static boolean loadDecodedFrames(String url, GifAnimation anim) {
+        Path file = GifDiskCache.lookup(url, GifDiskCache.FRAMES_SUFFIX);
+        if (file == null)
+            return false;
+
+        AtlasUpload upload = null;
+        Inflater inflater = new Inflater();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer header = readFully(channel, ByteBuffer.allocate(4 * 7));
+            if (header.getInt() != FRAMES_MAGIC || header.getInt() != FRAMES_VERSION)
+                return false;
+            AtlasLayout layout = new AtlasLayout(header.getInt(), header.getInt(), header.getInt(),
+                    header.getInt(), header.getInt());
+            if (layout.frameWidth() <= 0 || layout.frameHeight() <= 0 || layout.frameCount() <= 0
+                    || layout.columns() <= 0 || layout.framesPerPage() < layout.columns()
+                    || 4L * layout.frameCount() > fileSize)
+                return false;
+            // Written with a bigger atlas than this GPU allows, decode again instead
+            if (layout.pageWidth() > atlasSize || layout.pageHeight(0) > atlasSize)
+                return false;
+            ByteBuffer delayBytes = readFully(channel, ByteBuffer.allocate(4 * layout.frameCount()));
+            int[] delays = new int[layout.frameCount()];
+            for (int i = 0; i < delays.length; i++)
+                delays[i] = delayBytes.getInt();
+
+            anim.width = layout.frameWidth();
+            anim.height = layout.frameHeight();
+            upload = new AtlasUpload(url, anim, layout);
+
+            ByteBuffer length = ByteBuffer.allocate(4);
+            ByteBuffer compressed = ByteBuffer.allocate(0);
+            int frame = 0;
+            for (int p = 0; p < layout.pageCount(); p++) {
+                int size = readFully(channel, length.clear()).getInt();
+                if (size < 0 || size > fileSize - channel.position())
+                    throw new IOException("Truncated page " + p);
+                if (compressed.capacity() < size)
+                    compressed = ByteBuffer.allocate(size);
+                inflater.reset();
+                inflater.setInput(readFully(channel, compressed.clear().limit(size)));
+
+                ByteBuffer target = upload.pageBytes(p);
+                while (target.hasRemaining() && !inflater.finished()) {
+                    if (inflater.inflate(target) == 0 && inflater.needsInput())
+                        throw new IOException("Truncated page " + p);
+                }
+                if (target.hasRemaining())
+                    throw new IOException("Short page " + p);
+
+                // The page is complete, its frames can go to the render thread
+                for (; frame < layout.frameCount() && layout.page(frame) == p; frame++) {
+                    upload.addDelay(delays[frame]);
+                    upload.frameDecoded();
                 }
-                Files.createDirectories(CACHE_DIR);
-                LOGGER.info("[Reglia] Cache cleared successfully");
             }
+            upload.finish(true);
+            return true;
         } catch (Exception e) {
-            LOGGER.error("[Reglia] Failed to clear cache", e);
+            LOGGER.warn("[Reglia] Failed to load decoded frames for " + url + ": " + e.getMessage());
+            if (upload != null) {
+                // Keep whatever frames made it, the render thread frees the rest
+                upload.finish(false);
+                return true;
+            }
+            return false;
+        } finally {
+            inflater.end();
         }
     }
 
-    private static void checkCacheSizeAndClean() {
-        if (getCacheSize() > MAX_CACHE_SIZE_BYTES) {
-            LOGGER.info("[Reglia] Cache size limit exceeded (>500MB). Clearing cache...");
-            clearCache();
+    /** Fills {@code buffer} from the channel and flips it for reading. */
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException();
         }
+        return buffer.flip();
     }
 
-    private static String resolveUrl(String url) throws Exception {
-        if (url.contains("tenor.com") || url.contains("giphy.com")) {
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-                    .header("User-Agent", "Mozilla/5.0 Reglia Mod")
-                    .build();
-            String html = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
 
-            // Try og:image first
-            Matcher matcher = OG_IMAGE_PATTERN.matcher(html);
-            if (matcher.find()) {
-                String ogImage = unescape(matcher.group(1));
-                if (ogImage.contains(".gif") || ogImage.contains("media.tenor.com"))
-                    return ogImage;
-            }
+    /**
+     * Media URL behind a link. Tenor and Giphy page links are looked up by ID
+     * where possible and scraped otherwise, results are remembered on disk.
+     */
+    private static CompletableFuture<String> resolveUrl(String url) {
+        String cached = GifDiskCache.resolved(url);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
 
-            // Try specific Tenor pattern
-            matcher = TENOR_DIRECT_PATTERN.matcher(html);
-            if (matcher.find())
-                return unescape(matcher.group(1));
+        String host;
+        String path;
+        try {
+            URI uri = URI.create(unescape(url));
+            host = uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : "";
+            path = uri.getPath() != null ? uri.getPath() : "";
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(unescape(url));
         }
-        return unescape(url);
+
+        CompletableFuture<String> media;
+        if (host.equals("tenor.com") || host.equals("www.tenor.com")) {
+            Matcher id = TENOR_VIEW_ID_PATTERN.matcher(path);
+            media = id.find() ? fetchTenor(TENOR_GIFS + id.group(1))
+                    .thenCompose(results -> results.isEmpty() ? scrapePage(url)
+                            : CompletableFuture.completedFuture(results.get(0).url()))
+                    : scrapePage(url);
+        } else if (host.equals("giphy.com") || host.equals("www.giphy.com")) {
+            // Giphy media URLs follow from the ID alone, no request needed
+            Matcher id = GIPHY_ID_PATTERN.matcher(path);
+            media = id.find() ? CompletableFuture.completedFuture("https://i.giphy.com/media/" + id.group(1) + "/giphy.gif")
+                    : scrapePage(url);
+        } else {
+            // Already a media URL
+            return CompletableFuture.completedFuture(unescape(url));
+        }
+        return media.thenApply(resolved -> {
+            if (!resolved.equals(unescape(url)))
+                GifDiskCache.putResolved(url, resolved);
+            return resolved;
+        });
+    }
+
+    private static CompletableFuture<String> scrapePage(String url) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofMillis(RESPONSE_TIMEOUT_MS))
+                .header("User-Agent", "Mozilla/5.0 Reglia Mod")
+                .build();
+        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .orTimeout(DOWNLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .thenApply(response -> {
+                    String html = response.body();
+
+                    // Try og:image first
+                    Matcher matcher = OG_IMAGE_PATTERN.matcher(html);
+                    if (matcher.find()) {
+                        String ogImage = unescape(matcher.group(1));
+                        if (ogImage.contains(".gif") || ogImage.contains("media.tenor.com"))
+                            return ogImage;
+                    }
+
+                    // Try specific Tenor pattern
+                    matcher = TENOR_DIRECT_PATTERN.matcher(html);
+                    if (matcher.find())
+                        return unescape(matcher.group(1));
+                    return unescape(url);
+                });
     }
 
     private static String unescape(String url) {
@@ -267,105 +910,104 @@ public class GifManager {
                 .replace("\\/", "/");
     }
 
-    private static List<NativeImage> processGifFrames(String originalUrl, byte[] data, GifAnimation anim) {
-        List<NativeImage> frames = new ArrayList<>();
-        try (InputStream is = new ByteArrayInputStream(data);
-                ImageInputStream iis = ImageIO.createImageInputStream(is)) {
-            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
-            if (!readers.hasNext()) {
-                LOGGER.error("[Reglia] No GIF reader found for data of size " + data.length);
-                return frames;
-            }
-
-            ImageReader reader = readers.next();
-            reader.setInput(iis);
-
-            int count = 0;
-            try {
-                count = reader.getNumImages(true);
-            } catch (Exception e) {
-                LOGGER.warn("[Reglia] Failed to count images: " + e.getMessage());
-                count = 0;
-            }
-
-            LOGGER.info("[Reglia] Found " + count + " frames in GIF");
-
-            // Now that processing is off render thread, we can handle more frames!
-            int maxFrames = 120; // Increased from 60 for smoother playback
-            int frameStep = 1;
-            if (count > maxFrames) {
-                frameStep = (int) Math.ceil((double) count / maxFrames);
-                LOGGER.info("[Reglia] Downsampling from " + count + " to ~" + (count / frameStep) + " frames");
-            }
-
-            if (count > 0) {
-                // Read first frame to get dimensions
-                BufferedImage first = reader.read(0);
-                anim.width = first.getWidth();
-                anim.height = first.getHeight();
+    /**
+     * Decodes and composites frames into atlas pages, publishing them as they
+     * complete. Returns false if nothing was handed to the render thread.
+     */
+    private static boolean processGifFrames(String originalUrl, byte[] data, GifAnimation anim) throws IOException {
+        int count = GifDecoder.countFrames(data);
+        LOGGER.info("[Reglia] Found " + count + " frames in GIF");
+        if (count == 0)
+            return false;
 
-                // Create master canvas for compositing
-                BufferedImage master = new BufferedImage(anim.width, anim.height, BufferedImage.TYPE_INT_ARGB);
-                java.awt.Graphics2D g2d = master.createGraphics();
-                g2d.setBackground(new java.awt.Color(0, 0, 0, 0));
-
-                for (int i = 0; i < count; i += frameStep) {
-                    BufferedImage frame = reader.read(i);
+        // Now that processing is off render thread, we can handle more frames!
+        int frameStep = 1;
+        if (count > MAX_FRAMES) {
+            frameStep = (int) Math.ceil((double) count / MAX_FRAMES);
+            LOGGER.info("[Reglia] Downsampling from " + count + " to ~" + (count / frameStep) + " frames");
+        }
 
-                    // Get frame metadata for position and disposal
-                    int frameX = 0, frameY = 0;
-                    String disposal = "none";
-                    try {
-                        javax.imageio.metadata.IIOMetadata meta = reader.getImageMetadata(i);
-                        org.w3c.dom.Node root = meta.getAsTree("javax_imageio_gif_image_1.0");
-                        org.w3c.dom.NodeList children = root.getChildNodes();
-                        for (int c = 0; c < children.getLength(); c++) {
-                            org.w3c.dom.Node node = children.item(c);
-                            if ("ImageDescriptor".equals(node.getNodeName())) {
-                                org.w3c.dom.NamedNodeMap attrs = node.getAttributes();
-                                if (attrs.getNamedItem("imageLeftPosition") != null)
-                                    frameX = Integer.parseInt(attrs.getNamedItem("imageLeftPosition").getNodeValue());
-                                if (attrs.getNamedItem("imageTopPosition") != null)
-                                    frameY = Integer.parseInt(attrs.getNamedItem("imageTopPosition").getNodeValue());
-                            }
-                            if ("GraphicControlExtension".equals(node.getNodeName())) {
-                                org.w3c.dom.NamedNodeMap attrs = node.getAttributes();
-                                if (attrs.getNamedItem("disposalMethod") != null)
-                                    disposal = attrs.getNamedItem("disposalMethod").getNodeValue();
-                            }
-                        }
-                    } catch (Exception ignored) {
-                    }
+        GifDecoder decoder = new GifDecoder(new ByteArrayInputStream(data));
+        int outputFrames = (count + frameStep - 1) / frameStep;
+        return decodeFrames(originalUrl, decoder, anim,
+                AtlasLayout.of(decoder.getWidth(), decoder.getHeight(), outputFrames, atlasSize), frameStep, true);
+    }
 
-                    // Handle disposal BEFORE drawing this frame
-                    if ("restoreToBackgroundColor".equals(disposal)) {
-                        g2d.clearRect(frameX, frameY, frame.getWidth(), frame.getHeight());
-                    }
+    /**
+     * Decodes a GIF as it downloads. The frame count isn't known up front, so
+     * there is no downsampling: frames past {@link #MAX_FRAMES} are cut off, and
+     * the GIF is decoded again from the finished download.
+     */
+    private static boolean processGifStream(String originalUrl, InputStream in, GifAnimation anim)
+            throws IOException {
+        GifDecoder decoder = new GifDecoder(in);
+        return decodeFrames(originalUrl, decoder, anim,
+                AtlasLayout.streaming(decoder.getWidth(), decoder.getHeight(), MAX_FRAMES, atlasSize), 1, false);
+    }
 
-                    // Draw frame at correct position
-                    g2d.drawImage(frame, frameX, frameY, null);
+    /**
+     * @param exactCount whether the layout holds exactly the frames the GIF has,
+     *                   rather than an upper bound
+     */
+    private static boolean decodeFrames(String originalUrl, GifDecoder decoder, GifAnimation anim,
+            AtlasLayout layout, int frameStep, boolean exactCount) {
+        AtlasUpload upload = null;
+        try {
+            // Decoder composites every frame (skipped ones still matter for disposal)
+            // onto one reusable canvas the size of the logical screen
+            anim.width = decoder.getWidth();
+            anim.height = decoder.getHeight();
 
-                    // Convert to NativeImage (still on async thread - this is the heavy part)
-                    frames.add(fromBufferedImage(master));
+            // Each frame is copied straight into its atlas cell
+            upload = new AtlasUpload(originalUrl, anim, layout);
 
-                    // Handle disposal AFTER capturing (for next frame)
-                    if ("restoreToBackgroundColor".equals(disposal)) {
-                        g2d.clearRect(frameX, frameY, frame.getWidth(), frame.getHeight());
+            // An output frame is only complete once the frames skipped after it have
+            // contributed their delays
+            boolean pending = false;
+            boolean truncated = false;
+            for (int i = 0; decoder.nextFrame(); i++) {
+                if (i % frameStep == 0) {
+                    if (pending)
+                        upload.frameDecoded();
+                    if (upload.isFull()) {
+                        truncated = true;
+                        break;
                     }
+                    // Still on async thread - this is the heavy part
+                    copyToAtlas(decoder.getCanvas(), anim.width, anim.height, upload.nextPage(),
+                            layout.pageWidth(), upload.nextCellX(), upload.nextCellY());
+                    pending = true;
                 }
-                g2d.dispose();
+                upload.addDelay(decoder.getDelay());
             }
-            LOGGER.info("[Reglia] Processed " + frames.size() + " frames for " + originalUrl);
+            if (pending)
+                upload.frameDecoded();
+
+            LOGGER.info("[Reglia] Processed " + upload.decoded + " frames for " + originalUrl);
+            // Show the last frames first, then persist the composited result for next time.
+            // Fewer frames than counted means a damaged file, don't persist it either.
+            upload.flush();
+            if (upload.decoded > 0 && !truncated && (!exactCount || upload.isFull()))
+                saveDecodedFrames(originalUrl, upload);
+            upload.finish(true);
+            anim.truncated = truncated;
+            return true;
         } catch (Exception e) {
             LOGGER.error("[Reglia] Error processing GIF: " + originalUrl, e);
+            if (upload != null) {
+                // Keep whatever frames made it, the render thread frees the rest
+                upload.finish(false);
+                return true;
+            }
         }
-        return frames;
+        return false;
     }
 
     // Tenor Public Key (LIVDSRZULELA is the standard public key for integrations)
     private static final String TENOR_KEY = "LIVDSRZULELA";
     private static final String TENOR_TRENDING = "https://g.tenor.com/v1/trending?key=" + TENOR_KEY + "&limit=20";
     private static final String TENOR_SEARCH = "https://g.tenor.com/v1/search?key=" + TENOR_KEY + "&limit=20&q=";
+    private static final String TENOR_GIFS = "https://g.tenor.com/v1/gifs?key=" + TENOR_KEY + "&media_filter=minimal&ids=";
 
     public record GifEntry(String url, String previewUrl) {
     }
@@ -380,72 +1022,57 @@ public class GifManager {
     }
 
     private static CompletableFuture<List<GifEntry>> fetchTenor(String apiUrl) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl))
-                        .header("User-Agent", "Mozilla/5.0 Reglia Mod")
-                        .build();
-                String json = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString()).body();
-
-                List<GifEntry> results = new ArrayList<>();
-                try {
-                    com.google.gson.JsonObject root = new com.google.gson.Gson().fromJson(json,
-                            com.google.gson.JsonObject.class);
-                    if (root.has("results")) {
-                        com.google.gson.JsonArray arr = root.getAsJsonArray("results");
-                        for (com.google.gson.JsonElement el : arr) {
-                            try {
-                                com.google.gson.JsonObject obj = el.getAsJsonObject();
-                                if (obj.has("media")) {
-                                    com.google.gson.JsonArray mediaArr = obj.getAsJsonArray("media");
-                                    if (mediaArr.size() > 0) {
-                                        com.google.gson.JsonObject media = mediaArr.get(0).getAsJsonObject();
-                                        if (media.has("gif")) {
-                                            com.google.gson.JsonObject gif = media.getAsJsonObject("gif");
-                                            if (gif.has("url")) {
-                                                String url = gif.get("url").getAsString();
-                                                results.add(new GifEntry(url, url));
-                                            }
-                                        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl))
+                .timeout(Duration.ofMillis(RESPONSE_TIMEOUT_MS))
+                .header("User-Agent", "Mozilla/5.0 Reglia Mod")
+                .build();
+        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> parseTenorResults(response.body()))
+                .exceptionally(e -> {
+                    LOGGER.error("[Reglia] Tenor API failed", e);
+                    return Collections.emptyList();
+                });
+    }
+
+    private static List<GifEntry> parseTenorResults(String json) {
+        List<GifEntry> results = new ArrayList<>();
+        try {
+            com.google.gson.JsonObject root = new com.google.gson.Gson().fromJson(json,
+                    com.google.gson.JsonObject.class);
+            if (root.has("results")) {
+                com.google.gson.JsonArray arr = root.getAsJsonArray("results");
+                for (com.google.gson.JsonElement el : arr) {
+                    try {
+                        com.google.gson.JsonObject obj = el.getAsJsonObject();
+                        if (obj.has("media")) {
+                            com.google.gson.JsonArray mediaArr = obj.getAsJsonArray("media");
+                            if (mediaArr.size() > 0) {
+                                com.google.gson.JsonObject media = mediaArr.get(0).getAsJsonObject();
+                                if (media.has("gif")) {
+                                    com.google.gson.JsonObject gif = media.getAsJsonObject("gif");
+                                    if (gif.has("url")) {
+                                        String url = gif.get("url").getAsString();
+                                        results.add(new GifEntry(url, url));
                                     }
                                 }
-                            } catch (Exception e) {
-                                // Skip malformed entry
                             }
                         }
+                    } catch (Exception e) {
+                        // Skip malformed entry
                     }
-                } catch (Exception e) {
-                    LOGGER.error("[Reglia] Failed to parse Tenor JSON", e);
                 }
-                return results;
-            } catch (Exception e) {
-                LOGGER.error("[Reglia] Tenor API failed", e);
-                return Collections.emptyList();
             }
-        });
+        } catch (Exception e) {
+            LOGGER.error("[Reglia] Failed to parse Tenor JSON", e);
+        }
+        return results;
     }
 
-    private static NativeImage fromBufferedImage(BufferedImage bimg) {
-        int w = bimg.getWidth();
-        int h = bimg.getHeight();
-        NativeImage nimg = new NativeImage(w, h, true);
-
-        // Bulk read all pixels at once (much faster than per-pixel getRGB)
-        int[] pixels = bimg.getRGB(0, 0, w, h, null, 0, w);
-
-        // Convert ARGB to ABGR in place and write
-        for (int i = 0; i < pixels.length; i++) {
-            int argb = pixels[i];
-            int a = (argb >> 24) & 0xFF;
-            int r = (argb >> 16) & 0xFF;
-            int g = (argb >> 8) & 0xFF;
-            int b = argb & 0xFF;
-            int abgr = (a << 24) | (b << 16) | (g << 8) | r;
-
-            int x = i % w;
-            int y = i / w;
-            nimg.setPixelRGBA(x, y, abgr);
+    private static void copyToAtlas(int[] abgr, int w, int h, IntBuffer page, int pageWidth, int cellX,
+            int cellY) {
+        // Canvas is already in NativeImage's ABGR layout: one bulk copy per row into the cell
+        for (int y = 0; y < h; y++) {
+            page.put((cellY + y) * pageWidth + cellX, abgr, y * w, w);
         }
-        return nimg;
     }
 }
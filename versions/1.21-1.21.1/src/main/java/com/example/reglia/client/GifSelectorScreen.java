@@ -1,12 +1,13 @@
 package com.example.reglia.client;
 
+import com.example.reglia.GifProbe;
 import com.example.reglia.client.GifManager.GifEntry;
 import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.GuiGraphics;
 import net.minecraft.client.gui.components.EditBox;
 import net.minecraft.client.gui.screens.Screen;
 import net.minecraft.network.chat.Component;
-import net.minecraft.resources.ResourceLocation;
 import net.minecraft.util.Mth;
 import org.lwjgl.glfw.GLFW;
 
@@ -75,12 +76,29 @@ public class GifSelectorScreen extends Screen {
 
     private void refreshGifs(String query) {
         if (query.isEmpty()) {
-            GifManager.getTrending().thenAccept(results -> this.gifs = results);
+            GifManager.getTrending().thenAccept(this::setGifs);
         } else {
-            GifManager.searchTenor(query).thenAccept(results -> this.gifs = results);
+            GifManager.searchTenor(query).thenAccept(this::setGifs);
         }
     }
 
+    private void setGifs(List<GifEntry> results) {
+        this.gifs = results;
+        // Queue the whole result page behind the visible tiles, so scrolling finds them loaded.
+        // The previous page's prefetches aren't wanted anymore, unless they are on this one too.
+        Minecraft.getInstance().execute(() -> {
+            GifManager.cancelPrefetches();
+            if (Minecraft.getInstance().screen == this)
+                results.forEach(gif -> GifManager.prefetch(gif.url()));
+        });
+    }
+
+    @Override
+    public void removed() {
+        super.removed();
+        GifManager.cancelPrefetches();
+    }
+
     @Override
     public void render(GuiGraphics graphics, int mouseX, int mouseY, float partialTick) {
         // 0. Reset Render State (Fixes potential blur/bleeding from other screens)
@@ -185,11 +203,11 @@ public class GifSelectorScreen extends Screen {
 
         // Image
         GifManager.GifAnimation anim = GifManager.getAnimation(gif.url());
-        ResourceLocation frame = GifManager.getFrame(gif.url());
+        GifManager.GifFrame frame = GifManager.getFrame(gif.url());
 
         if (frame != null && anim != null && anim.width > 0 && anim.height > 0) {
-            RenderSystem.setShaderTexture(0, frame);
-            graphics.blit(frame, x, y, size, size, 0, 0, anim.width, anim.height, anim.width, anim.height);
+            graphics.blit(frame.texture(), x, y, size, size, frame.u(), frame.v(), frame.width(), frame.height(),
+                    frame.atlasWidth(), frame.atlasHeight());
         } else {
             // Skeleton Loading Animation
             long time = System.currentTimeMillis();
@@ -269,32 +287,14 @@ public class GifSelectorScreen extends Screen {
         if (this.minecraft != null && this.minecraft.player != null) {
             GifManager.GifAnimation anim = GifManager.getAnimation(url);
 
-            // Default dimensions
-            int height = 40;
-            int width = height; // Square default
-
+            // Default dimensions, square
+            GifProbe.Size size = new GifProbe.Size(GifProbe.MAX_DISPLAY_HEIGHT, GifProbe.MAX_DISPLAY_HEIGHT);
             if (anim != null && anim.width > 0 && anim.height > 0) {
-                // Determine target dimensions (max 40px height)
-                int maxHeight = 40;
-                int maxWidth = 200; // Cap width too
-
-                height = anim.height;
-                width = anim.width;
-
-                // Scale down if too tall
-                if (height > maxHeight) {
-                    float scale = (float) maxHeight / height;
-                    height = maxHeight;
-                    width = (int) (width * scale);
-                }
-
-                // Scale down if too wide (unlikely with 40px height, but good safety)
-                if (width > maxWidth) {
-                    float scale = (float) maxWidth / width;
-                    width = maxWidth;
-                    height = (int) (height * scale);
-                }
+                // Same fit the server uses for Discord GIFs
+                size = new GifProbe.Size(anim.width, anim.height).fitChat();
             }
+            int width = size.width();
+            int height = size.height();
 
             // Send with Smart Embedding protocol: [GIF:url:W<width>:H<height>]
             String msg = "[GIF:" + url + ":W" + width + ":H" + height + "]";
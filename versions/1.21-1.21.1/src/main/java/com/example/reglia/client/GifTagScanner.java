@@ -0,0 +1,257 @@
+package com.example.reglia.client;
+
+import com.example.reglia.GifProbe;
+import com.example.reglia.GifRegistry;
+import com.example.reglia.RegliaNetwork;
+import com.google.common.collect.MapMaker;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.multiplayer.ClientPacketListener;
+import net.minecraft.network.chat.Style;
+import net.minecraft.util.FormattedCharSink;
+import net.minecraft.util.FormattedCharSequence;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Finds and parses the first [GIF:...] tag in a line of text. Runs for every
+ * chat line drawn, so it keeps all state in reusable fields: ordinary text
+ * costs one comparison per character and allocates nothing, and ID tags parse
+ * straight out of the char buffer. Results are cached per line object, so a
+ * chat history that is redrawn every frame is only scanned once. Render thread
+ * only, use {@link #get()}.
+ */
+public final class GifTagScanner implements FormattedCharSink {
+    private static final GifTagScanner INSTANCE = new GifTagScanner();
+
+    /** A parsed tag: the resolved GIF URL plus the :W/:H overrides (-1 if absent). */
+    public record GifTag(String url, int width, int height) {
+    }
+
+    private static final GifTag NONE = new GifTag(null, -1, -1);
+
+    // Chat lines and components hand out the same sequence instances every frame.
+    // Weak keys compare by identity and let lines go once they leave the history.
+    private static final Map<FormattedCharSequence, GifTag> TAGS = new MapMaker().weakKeys().makeMap();
+
+    private static final char[] PREFIX = { '[', 'G', 'I', 'F', ':' };
+    private static final int MAX_TAG_LENGTH = 2048;
+    private static final int MEMO_SIZE = 16; // power of two
+
+    // Scan state
+    private final char[] buffer = new char[MAX_TAG_LENGTH];
+    private int length;
+    private int matched;
+    private boolean found;
+
+    // Parse results
+    private String url;
+    private int width;
+    private int height;
+    private int number;
+
+    // Resolved IDs, so a visible GIF doesn't box an Integer for the registry every frame
+    private final int[] memoIds = new int[MEMO_SIZE];
+    private final String[] memoUrls = new String[MEMO_SIZE];
+    private String lastRawUrl;
+
+    private GifTagScanner() {
+    }
+
+    public static GifTagScanner get() {
+        return INSTANCE;
+    }
+
+    /**
+     * The tag in {@code text}, scanning it only the first time this sequence is
+     * seen.
+     *
+     * @return null if the line has no tag pointing at a known GIF
+     */
+    public GifTag find(FormattedCharSequence text) {
+        GifTag tag = TAGS.get(text);
+        if (tag == null) {
+            if (scan(text))
+                tag = new GifTag(url, width, height);
+            else if (found)
+                return null; // ID not registered yet, look again next frame
+            else
+                tag = NONE;
+            TAGS.put(text, tag);
+        }
+        return tag == NONE ? null : tag;
+    }
+
+    /**
+     * Height the tag in {@code text} is drawn at, for reserving chat lines. Works
+     * before the GIF itself is known.
+     *
+     * @return 0 if the line has no tag
+     */
+    public int displayHeight(FormattedCharSequence text) {
+        scan(text);
+        if (!found)
+            return 0;
+        if (height <= 0)
+            return GifProbe.MAX_DISPLAY_HEIGHT;
+        // Same clamp the renderer applies to the tag's size
+        return new GifProbe.Size(Math.max(1, width), height).fitChat().height();
+    }
+
+    /**
+     * Scans {@code text} for a tag pointing at a known GIF, bypassing the cache.
+     *
+     * @return false if there is none, the getters are only valid after true
+     */
+    public boolean scan(FormattedCharSequence text) {
+        length = 0;
+        matched = 0;
+        found = false;
+        text.accept(this);
+        return found && parse();
+    }
+
+    /** URL of the GIF, with registry IDs already resolved. */
+    public String url() {
+        return url;
+    }
+
+    /** Width from a :W suffix, or -1. */
+    public int width() {
+        return width;
+    }
+
+    /** Height from a :H suffix, or -1. */
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public boolean accept(int index, Style style, int codePoint) {
+        if (matched < PREFIX.length) {
+            if (codePoint == PREFIX[matched])
+                matched++;
+            else
+                matched = codePoint == '[' ? 1 : 0;
+            return true;
+        }
+
+        if (codePoint == ']') {
+            found = true;
+            return false; // Stop iteration, we found it
+        }
+        if (length + 2 > buffer.length) {
+            // Too long to be a tag, look for the next one
+            matched = 0;
+            length = 0;
+            return true;
+        }
+        if (Character.isBmpCodePoint(codePoint)) {
+            buffer[length++] = (char) codePoint;
+        } else {
+            buffer[length++] = Character.highSurrogate(codePoint);
+            buffer[length++] = Character.lowSurrogate(codePoint);
+        }
+        return true;
+    }
+
+    /** Splits "ID:123:W50:H40" or "url:W50:H40" without creating substrings. */
+    private boolean parse() {
+        int end = length;
+        width = -1;
+        height = -1;
+
+        // Optional :W<n> then :H<n> at the end, same order as the chat regex
+        int start = suffix(end, 'H');
+        if (start >= 0) {
+            height = number;
+            end = start;
+        }
+        start = suffix(end, 'W');
+        if (start >= 0) {
+            width = number;
+            end = start;
+        }
+
+        if (end > 3 && buffer[0] == 'I' && buffer[1] == 'D' && buffer[2] == ':' && parseInt(3, end)) {
+            url = resolveId(number);
+        } else if (end > 0) {
+            url = rawUrl(end);
+        } else {
+            url = null;
+        }
+        return url != null;
+    }
+
+    /**
+     * Start of a ":&lt;key&gt;&lt;digits&gt;" suffix ending at {@code end}, or -1. The
+     * value is left in {@link #number}.
+     */
+    private int suffix(int end, char key) {
+        int i = end;
+        while (i > 0 && buffer[i - 1] >= '0' && buffer[i - 1] <= '9')
+            i--;
+        if (i == end || i < 2 || buffer[i - 1] != key || buffer[i - 2] != ':' || !parseInt(i, end))
+            return -1;
+        return i - 2;
+    }
+
+    /** Parses an optionally negative int from the buffer into {@link #number}. */
+    private boolean parseInt(int from, int to) {
+        boolean negative = from < to && buffer[from] == '-';
+        if (negative)
+            from++;
+        if (from == to || to - from > 10)
+            return false;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = buffer[i];
+            if (c < '0' || c > '9')
+                return false;
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            return false;
+        number = (int) value;
+        return true;
+    }
+
+    private String resolveId(int id) {
+        int slot = id & (MEMO_SIZE - 1);
+        if (memoUrls[slot] != null && memoIds[slot] == id)
+            return memoUrls[slot];
+        String resolved = GifRegistry.getUrl(id);
+        if (resolved != null) {
+            memoIds[slot] = id;
+            memoUrls[slot] = resolved;
+        } else if (id > 0) {
+            // Server ID we haven't seen yet, the line shows up once the answer arrives
+            ClientPacketListener connection = Minecraft.getInstance().getConnection();
+            if (connection != null && connection.hasChannel(RegliaNetwork.GifUrlRequest.TYPE))
+                RegliaNetwork.requestUrl(id);
+        }
+        return resolved;
+    }
+
+    /** Forgets cached tags and IDs, called when leaving a server. */
+    public void clear() {
+        TAGS.clear();
+        Arrays.fill(memoUrls, null);
+        lastRawUrl = null;
+    }
+
+    private String rawUrl(int end) {
+        // Same tag as last time is the common case, compare before building a String
+        String last = lastRawUrl;
+        if (last != null && last.length() == end) {
+            boolean same = true;
+            for (int i = 0; i < end && same; i++)
+                same = last.charAt(i) == buffer[i];
+            if (same)
+                return last;
+        }
+        lastRawUrl = new String(buffer, 0, end);
+        return lastRawUrl;
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.reglia.mixin;
+
+import com.example.reglia.GifProbe;
+import com.example.reglia.client.GifChatRenderer;
+import com.example.reglia.client.GifManager;
+import com.example.reglia.client.GifTagScanner;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.Font;
+import net.minecraft.client.gui.GuiGraphics;
+import net.minecraft.client.gui.components.ChatComponent;
+import net.minecraft.client.gui.components.ComponentRenderUtils;
+import net.minecraft.network.chat.FormattedText;
+import net.minecraft.util.FormattedCharSequence;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Integrates GIFs with the chat component. When a message is laid out, a GIF
+ * tag line is followed by empty placeholder lines covering the GIF's height, so
+ * messages carry no padding themselves and the space follows the current line
+ * spacing. While the chat renders, GIF lines are handed to
+ * {@link GifChatRenderer} instead of being drawn as text, and all of them are
+ * drawn together after the chat text.
+ */
+@Mixin(ChatComponent.class)
+public class ChatComponentMixin {
+
+    @Redirect(method = "addMessageToDisplayQueue", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/gui/components/ComponentRenderUtils;wrapComponents(Lnet/minecraft/network/chat/FormattedText;ILnet/minecraft/client/gui/Font;)Ljava/util/List;"))
+    private List<FormattedCharSequence> reglia$reserveGifLines(FormattedText text, int maxWidth, Font font) {
+        List<FormattedCharSequence> lines = ComponentRenderUtils.wrapComponents(text, maxWidth, font);
+        List<FormattedCharSequence> result = null;
+        // Same line height the chat component lays out with
+        double lineSpacing = Minecraft.getInstance().options.chatLineSpacing().get();
+        int lineHeight = Math.max(1, (int) (9.0 * (lineSpacing + 1.0)));
+
+        for (int i = 0; i < lines.size(); i++) {
+            FormattedCharSequence line = lines.get(i);
+            int height = GifTagScanner.get().displayHeight(line);
+            if (height > 0 && result == null)
+                result = new ArrayList<>(lines.subList(0, i)); // First GIF, copy what came before
+            if (result == null)
+                continue;
+            result.add(line);
+            // The GIF covers its own line plus the placeholders below it (+1 for the text inset)
+            int extra = (int) Math.ceil((height + 1.0) / lineHeight) - 1;
+            for (int j = 0; j < extra; j++)
+                result.add(FormattedCharSequence.EMPTY);
+        }
+        return result != null ? result : lines;
+    }
+
+    @Inject(method = "render", at = @At("HEAD"))
+    private void reglia$beforeRender(GuiGraphics graphics, int tickCount, int mouseX, int mouseY, boolean focused,
+            CallbackInfo ci) {
+        GifChatRenderer.beginChat();
+    }
+
+    @Redirect(method = "render", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/gui/GuiGraphics;drawString(Lnet/minecraft/client/gui/Font;Lnet/minecraft/util/FormattedCharSequence;III)I"))
+    private int reglia$drawLine(GuiGraphics graphics, Font font, FormattedCharSequence text, int x, int y,
+            int color) {
+        // Lines are only scanned the first time they are drawn, after that this is a lookup
+        GifTagScanner.GifTag tag = GifTagScanner.get().find(text);
+        GifManager.GifFrame frame = tag != null ? GifManager.getFrame(tag.url()) : null;
+        if (frame == null)
+            return graphics.drawString(font, text, x, y, color); // Text, or the tag while loading
+
+        int displayWidth = 48;
+        int displayHeight = 48;
+
+        GifManager.GifAnimation anim = GifManager.getAnimation(tag.url());
+        if (anim != null && anim.width > 0 && anim.height > 0) {
+            // Use override dimensions if present (Smart Embedding), clamped like our own
+            GifProbe.Size size = tag.width() > 0 && tag.height() > 0
+                    ? new GifProbe.Size(tag.width(), tag.height()).fitChat()
+                    : new GifProbe.Size(anim.width, anim.height).fitChat();
+            displayWidth = size.width();
+            displayHeight = size.height();
+        }
+
+        // Respect alpha from text color (handles chat opacity/fading)
+        float alpha = ((color >> 24) & 0xFF) / 255.0f;
+        if (alpha > 0.05f)
+            GifChatRenderer.draw(graphics, frame, x, y, displayWidth, displayHeight, alpha);
+        return x;
+    }
+
+    @Inject(method = "render", at = @At("RETURN"))
+    private void reglia$afterRender(GuiGraphics graphics, int tickCount, int mouseX, int mouseY, boolean focused,
+            CallbackInfo ci) {
+        GifChatRenderer.endChat(graphics);
+    }
+}
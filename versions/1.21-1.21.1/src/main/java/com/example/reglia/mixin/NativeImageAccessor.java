@@ -0,0 +1,16 @@
+package com.example.reglia.mixin;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+/**
+ * Exposes the off-heap pixel pointer of a NativeImage so decoded GIF frames can
+ * be written in bulk instead of one setPixelRGBA call per pixel.
+ */
+@Mixin(NativeImage.class)
+public interface NativeImageAccessor {
+
+    @Accessor("pixels")
+    long reglia$getPixels();
+}
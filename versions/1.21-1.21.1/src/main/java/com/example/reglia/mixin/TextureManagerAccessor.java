@@ -0,0 +1,21 @@
+package com.example.reglia.mixin;
+
+import net.minecraft.client.renderer.texture.AbstractTexture;
+import net.minecraft.client.renderer.texture.TextureManager;
+import net.minecraft.resources.ResourceLocation;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+import java.util.Map;
+
+/**
+ * Exposes the registered textures so evicted GIF atlases can be removed.
+ * TextureManager.release only frees the GL id and keeps the texture (and its
+ * pixels) in the map.
+ */
+@Mixin(TextureManager.class)
+public interface TextureManagerAccessor {
+
+    @Accessor("byPath")
+    Map<ResourceLocation, AbstractTexture> reglia$getByPath();
+}